@@ -0,0 +1,74 @@
+package ichabod;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct byte buffers so connections don't allocate a new buffer
+ * every time they read from the network. Buffers are only held while a
+ * connection has unparsed bytes, so idle connections cost nothing.
+ */
+public class BufferPool {
+
+    /** Buffers that are free to use */
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+
+    /** The number of buffers currently in the free queue */
+    private final AtomicInteger freeCount = new AtomicInteger();
+
+    /** The size of each buffer in bytes */
+    private final int bufferSize;
+
+    /** The most buffers we keep around. Extras are left for the garbage collector. */
+    private final int maxPooled;
+
+    /**
+     * Create a pool
+     *
+     * @param bufferSize The size of each buffer in bytes
+     * @param maxPooled The most free buffers to keep
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Get an empty buffer, reusing one if we can
+     *
+     * @return A cleared buffer ready to be written to
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        freeCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool. It must not be used after this.
+     *
+     * @param buffer The buffer we are done with
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize) {
+            return; //Not one of ours
+        }
+        if (freeCount.incrementAndGet() <= maxPooled) {
+            free.offer(buffer);
+        } else {
+            freeCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return The size of each buffer in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
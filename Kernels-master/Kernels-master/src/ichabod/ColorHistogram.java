@@ -0,0 +1,163 @@
+package ichabod;
+
+import java.util.Arrays;
+
+/**
+ * Counts how many times each color appears in an image. The colors are packed
+ * RGB ints in an open-addressing hash table, so counting a pixel is a hash and
+ * a probe or two with nothing boxed or allocated.
+ *
+ * Each distinct color also gets an index, from 0 in the order they were first
+ * seen, so callers can keep their own per-color arrays.
+ */
+class ColorHistogram {
+
+    /** Marks an empty slot; no packed RGB color is negative */
+    private static final int EMPTY = -1;
+
+    /** The color in each slot, or EMPTY */
+    private int[] keys;
+
+    /** The index of the color in each slot */
+    private int[] slots;
+
+    /** The distinct colors by index */
+    private int[] colors;
+
+    /** How many times each color appears, by index */
+    private int[] counts;
+
+    /** How many distinct colors there are */
+    private int size;
+
+    /**
+     * Count the colors in an image
+     *
+     * @param pixels The packed pixels; alpha is ignored
+     */
+    ColorHistogram(int[] pixels) {
+        int capacity = 1024;
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        slots = new int[capacity];
+        colors = new int[capacity / 2];
+        counts = new int[capacity / 2];
+
+        for (int pixel : pixels) {
+            //insert() may grow counts, so look it up after
+            int index = insert(pixel & 0x00FFFFFF);
+            counts[index]++;
+        }
+    }
+
+    /**
+     * Find a color's index, adding it if it's new
+     *
+     * @param rgb The color
+     * @return Its index
+     */
+    private int insert(int rgb) {
+        int mask = keys.length - 1;
+        int slot = hash(rgb) & mask;
+        while (true) {
+            int key = keys[slot];
+            if (key == rgb) {
+                return slots[slot];
+            }
+            if (key == EMPTY) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        //A new color. Keep the table at most half full so probes stay short.
+        if (size == colors.length) {
+            grow();
+            return insert(rgb);
+        }
+        keys[slot] = rgb;
+        slots[slot] = size;
+        colors[size] = rgb;
+        return size++;
+    }
+
+    /**
+     * Double the table
+     */
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldSlots = slots;
+
+        keys = new int[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        slots = new int[keys.length];
+        colors = Arrays.copyOf(colors, keys.length / 2);
+        counts = Arrays.copyOf(counts, keys.length / 2);
+
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                slots[slot] = oldSlots[i];
+            }
+        }
+    }
+
+    /**
+     * Spread a color's bits so neighboring colors land far apart
+     *
+     * @param rgb The color
+     * @return The hash
+     */
+    private static int hash(int rgb) {
+        int h = rgb * 0x9E3779B1;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @param rgb A packed pixel; alpha is ignored
+     * @return The color's index, or -1 if it never appeared
+     */
+    int indexOf(int rgb) {
+        rgb &= 0x00FFFFFF;
+        int mask = keys.length - 1;
+        int slot = hash(rgb) & mask;
+        while (true) {
+            int key = keys[slot];
+            if (key == rgb) {
+                return slots[slot];
+            }
+            if (key == EMPTY) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * @return How many distinct colors there are
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param index A color's index
+     * @return The color, packed RGB
+     */
+    int color(int index) {
+        return colors[index];
+    }
+
+    /**
+     * @param index A color's index
+     * @return How many times it appears
+     */
+    int count(int index) {
+        return counts[index];
+    }
+}
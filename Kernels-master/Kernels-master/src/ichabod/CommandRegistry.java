@@ -0,0 +1,106 @@
+package ichabod;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Every operation the processor knows, by name, in the order they were
+ * registered. This is the one list of commands: dispatch, argument checks,
+ * cost estimates and the command list all read from it.
+ */
+public class CommandRegistry {
+
+    /** The operations by name */
+    private final Map<String, Operation> operations = new LinkedHashMap<>();
+
+    /**
+     * Add an operation
+     *
+     * @param operation The operation
+     * @return This registry, so registrations can be chained
+     * @throws IllegalArgumentException If there's already one with that name
+     */
+    public CommandRegistry register(Operation operation) {
+        if (operations.containsKey(operation.getName())) {
+            throw new IllegalArgumentException("There is already a command called " + operation.getName());
+        }
+        operations.put(operation.getName(), operation);
+        return this;
+    }
+
+    /**
+     * @param name A command's name
+     * @return The operation, or null if there isn't one by that name
+     */
+    public Operation get(String name) {
+        return operations.get(name);
+    }
+
+    /**
+     * @return The names of every operation, in the order they were registered
+     */
+    public String[] names() {
+        return operations.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * @return The names of the operations that make an image, leaving out the
+     * ones that answer with data, in the order they were registered
+     */
+    public String[] imageNames() {
+        return operations.values().stream().filter(operation -> !operation.isData()).map(Operation::getName).toArray(String[]::new);
+    }
+
+    /**
+     * Estimate how long a pipeline takes on one core, following the image's
+     * size through every stage
+     *
+     * @param stages The operations, in order
+     * @param arguments The request's arguments, already validated
+     * @param width The image's width
+     * @param height The image's height
+     * @return About how many nanoseconds the stages take, not counting decoding or encoding
+     */
+    public static double estimateNanos(Operation[] stages, Map<String, String> arguments, int width, int height) {
+        double nanos = 0;
+        for (Operation stage : stages) {
+            nanos += stage.getNanosPerPixel(arguments, width, height) * width * height;
+            int nextWidth = stage.getShape().width(width, height);
+            height = stage.getShape().height(width, height);
+            width = nextWidth;
+        }
+        return nanos;
+    }
+
+    /**
+     * @param stages The operations, in order
+     * @param width The image's width
+     * @param height The image's height
+     * @return The width and height of what the last image stage makes
+     */
+    public static int[] outputSize(Operation[] stages, int width, int height) {
+        for (Operation stage : stages) {
+            if (stage.isData()) {
+                break;
+            }
+            int nextWidth = stage.getShape().width(width, height);
+            height = stage.getShape().height(width, height);
+            width = nextWidth;
+        }
+        return new int[]{width, height};
+    }
+
+    /**
+     * @return Every operation as a JSON array
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("[");
+        for (Operation operation : operations.values()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append(operation.toJson());
+        }
+        return json.append(']').toString();
+    }
+}
@@ -0,0 +1,646 @@
+package ichabod;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Convolves images with a Kernel, picking the cheapest way the kernel allows:
+ *
+ * A box (every weight the same) keeps running sums across each row and down
+ * each column, so it costs the same per pixel whatever the radius.
+ *
+ * A separable kernel is run as a horizontal pass and then a vertical one,
+ * which is width + height multiplies per pixel instead of width * height.
+ *
+ * A big kernel is run through a fast Fourier transform, tile by tile, which
+ * costs about the same per pixel whatever the kernel's size.
+ *
+ * Anything else is done the long way. Between the direct ways and the
+ * transform, a cost model decides which will do less work for this image.
+ *
+ * Pixels near the edge read past it according to a Border, and every channel
+ * of the result is made positive and kept within [0,255].
+ */
+public class Convolution {
+
+    /** How to read pixels past the edge of the image */
+    public enum Border {
+        /** Repeat the edge pixel: aaa|abc|ccc */
+        CLAMP,
+        /** Reflect about the edge pixel: cb|abc|ba */
+        MIRROR,
+        /** Carry on from the other side: bc|abc|ab */
+        WRAP;
+
+        /**
+         * Pick a border from a request's arguments, clamp if there isn't one
+         *
+         * @param arguments The request's arguments
+         * @return The border
+         * @throws IllegalArgumentException If the border isn't one we know
+         */
+        public static Border fromArguments(Map<String, String> arguments) {
+            return arguments.containsKey("border") ? valueOf(arguments.get("border").toUpperCase()) : CLAMP;
+        }
+
+        /**
+         * Find the pixel to read for a position that may be past the edge
+         *
+         * @param i The position, which may be negative or past the end
+         * @param n How many pixels there are
+         * @return A position from 0 to n - 1
+         */
+        int index(int i, int n) {
+            switch (this) {
+                case WRAP:
+                    return ((i % n) + n) % n;
+                case MIRROR:
+                    if (n == 1) {
+                        return 0;
+                    }
+                    int period = 2 * (n - 1);
+                    i = ((i % period) + period) % period;
+                    return i < n ? i : period - i;
+                default:
+                    return i < 0 ? 0 : (i >= n ? n - 1 : i);
+            }
+        }
+    }
+
+    /** The ways we know to run a kernel */
+    public enum Method {
+        /** Running sums, for a kernel whose weights are all the same */
+        BOX,
+        /** A horizontal pass then a vertical one */
+        SEPARABLE,
+        /** Every weight for every pixel */
+        DENSE,
+        /** Multiplying tiles by the kernel in the frequency domain */
+        FFT
+    }
+
+    /** The smallest tile the transform works on */
+    private static final int MIN_TILE = 64;
+
+    /** The biggest tile the transform works on */
+    private static final int MAX_TILE = 512;
+
+    /** The fewest rows the box and separable ways work through at a time */
+    private static final int MIN_STRIP_ROWS = 32;
+
+    /** What a running sum costs per pixel whatever the radius, compared to one multiply-add */
+    private static final double BOX_WORK = 4;
+
+    /** What one butterfly of the transform costs compared to one multiply-add of the direct ways */
+    private static final double BUTTERFLY_COST = 3.5;
+
+    /** Splits the work across cores */
+    private final RowBands bands;
+
+    /**
+     * Create a convolution engine
+     *
+     * @param bands Splits the work across cores
+     */
+    public Convolution(RowBands bands) {
+        this.bands = bands;
+    }
+
+    /**
+     * Convolve an image
+     *
+     * @param in The original pixels
+     * @param out Where the result goes
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param kernel The kernel
+     * @param border How to read past the edge
+     */
+    public void convolve(int[] in, int[] out, int width, int height, Kernel kernel, Border border) {
+        convolve(in, out, width, height, kernel, border, choose(kernel, width, height));
+    }
+
+    /**
+     * Convolve an image a particular way
+     *
+     * @param in The original pixels
+     * @param out Where the result goes
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param kernel The kernel
+     * @param border How to read past the edge
+     * @param method How to run the kernel. BOX and SEPARABLE only work for kernels that allow them.
+     */
+    public void convolve(int[] in, int[] out, int width, int height, Kernel kernel, Border border, Method method) {
+        int rx = kernel.getWidth() / 2;
+        int ry = kernel.getHeight() / 2;
+
+        //Where to read for each position from -radius to size + radius, so the loops don't check edges
+        int[] columns = lookup(width, rx, border);
+        int[] rows = lookup(height, ry, border);
+
+        switch (method) {
+            case BOX:
+                box(in, out, width, height, rx, ry, kernel.get(0, 0), columns, rows);
+                break;
+            case SEPARABLE:
+                float[][] separated = kernel.separate();
+                separable(in, out, width, height, separated[0], separated[1], columns, rows);
+                break;
+            case FFT:
+                fft(in, out, width, height, kernel, columns, rows, tileSize(kernel, width, height));
+                break;
+            default:
+                dense(in, out, width, height, kernel, columns, rows);
+        }
+    }
+
+    /**
+     * Pick the way to run a kernel that does the least work on an image
+     *
+     * @param kernel The kernel
+     * @param width The width of the image
+     * @param height The height of the image
+     * @return How to run it
+     */
+    public Method choose(Kernel kernel, int width, int height) {
+        //Nothing beats a running sum
+        if (kernel.isBox()) {
+            return Method.BOX;
+        }
+
+        boolean separable = kernel.separate() != null;
+        double direct = (double) width * height
+                * (separable ? kernel.getWidth() + kernel.getHeight() : kernel.getWidth() * kernel.getHeight());
+
+        if (fftCost(kernel, width, height, tileSize(kernel, width, height)) < direct) {
+            return Method.FFT;
+        }
+        return separable ? Method.SEPARABLE : Method.DENSE;
+    }
+
+    /**
+     * Estimate the work convolve() does on an image, run the way choose()
+     * picks, in the same units as one multiply-add of the direct ways
+     *
+     * @param kernel The kernel
+     * @param width The width of the image
+     * @param height The height of the image
+     * @return About how much work per pixel
+     */
+    public double workPerPixel(Kernel kernel, int width, int height) {
+        switch (choose(kernel, width, height)) {
+            case BOX:
+                return BOX_WORK;
+            case SEPARABLE:
+                return kernel.getWidth() + kernel.getHeight();
+            case DENSE:
+                return (double) kernel.getWidth() * kernel.getHeight();
+            default:
+                return fftCost(kernel, width, height, tileSize(kernel, width, height)) / ((double) width * height);
+        }
+    }
+
+    /**
+     * Pick the tile size that makes the transform do the least work. Bigger
+     * tiles waste less on the overlap but cost more per pixel to transform.
+     *
+     * @param kernel The kernel
+     * @param width The width of the image
+     * @param height The height of the image
+     * @return The width and height of a tile, a power of two
+     */
+    private static int tileSize(Kernel kernel, int width, int height) {
+        int overlap = Math.max(kernel.getWidth(), kernel.getHeight()) - 1;
+        int best = 0;
+        double bestCost = Double.MAX_VALUE;
+        for (int size = MIN_TILE; size <= MAX_TILE; size <<= 1) {
+            if (size - overlap < size / 4) {
+                continue; //Almost all overlap
+            }
+            double cost = fftCost(kernel, width, height, size);
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = size;
+            }
+        }
+        //A kernel too big for any tile still gets the biggest one that fits it
+        return best != 0 ? best : Math.max(MAX_TILE, Integer.highestOneBit(overlap) * 4);
+    }
+
+    /**
+     * Estimate the work the transform does on an image, in the same units as
+     * one multiply-add of the direct ways
+     *
+     * @param kernel The kernel
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param size The width and height of a tile
+     * @return The estimated work, or infinity if the kernel doesn't fit in a tile that size
+     */
+    private static double fftCost(Kernel kernel, int width, int height, int size) {
+        int across = size - (kernel.getWidth() - 1);
+        int down = size - (kernel.getHeight() - 1);
+        if (across < 1 || down < 1) {
+            return Double.POSITIVE_INFINITY;
+        }
+        long tiles = (long) ((width + across - 1) / across) * ((height + down - 1) / down);
+
+        //Two forward and two inverse transforms per tile, each size * size * log2(size)
+        //butterflies, plus multiplying by the kernel; that covers all three channels,
+        //where a direct multiply-add only covers one
+        int log = Integer.numberOfTrailingZeros(size);
+        double perTile = 4 * (double) size * size * log * BUTTERFLY_COST + 2.0 * size * size * 2;
+        return tiles * perTile / 3;
+    }
+
+    /**
+     * Build a table of where to read for every position a kernel can reach
+     *
+     * @param n How many pixels there are along this axis
+     * @param radius How far past the edge the kernel reaches
+     * @param border How to read past the edge
+     * @return Entry i is where to read for position i - radius
+     */
+    private static int[] lookup(int n, int radius, Border border) {
+        int[] table = new int[n + 2 * radius];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = border.index(i - radius, n);
+        }
+        return table;
+    }
+
+    /**
+     * Pick how many rows the box and separable ways do at a time. Each strip
+     * redoes the horizontal pass for the rows its kernel reaches past it, so
+     * strips are kept several times taller than that.
+     *
+     * @param ry The vertical radius
+     * @param height The height of the image
+     * @return Rows per strip
+     */
+    private static int stripRows(int ry, int height) {
+        return Math.max(1, Math.min(height, Math.max(MIN_STRIP_ROWS, 8 * ry)));
+    }
+
+    /**
+     * Convolve with a box by keeping running sums. Each strip of rows sums
+     * across the rows its window covers into a ring just big enough for the
+     * window, then slides a column of those sums down the strip, so there's
+     * never more than a window of sums per thread.
+     *
+     * @param in The original pixels
+     * @param out Where the result goes
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param rx The horizontal radius
+     * @param ry The vertical radius
+     * @param weight The weight of every cell
+     * @param columns Where to read for each column
+     * @param rows Where to read for each row
+     */
+    private void box(int[] in, int[] out, int width, int height, int rx, int ry, float weight, int[] columns, int[] rows) {
+        int area = (2 * rx + 1) * (2 * ry + 1);
+        //An averaging box divides exactly instead of multiplying by a rounded 1 / area
+        boolean average = Math.abs(weight * area - 1) < 1e-4f;
+        int strip = stripRows(ry, height);
+
+        bands.forEachRow(width * strip, (height + strip - 1) / strip, (first, last) -> {
+            //The window's rows plus the one about to enter it
+            int ring = 2 * ry + 2;
+            int[] sumR = new int[ring * width];
+            int[] sumG = new int[ring * width];
+            int[] sumB = new int[ring * width];
+            int[] r = new int[width];
+            int[] g = new int[width];
+            int[] b = new int[width];
+
+            for (int s = first; s < last; s++) {
+                int start = s * strip;
+                int end = Math.min(height, start + strip);
+
+                Arrays.fill(r, 0);
+                Arrays.fill(g, 0);
+                Arrays.fill(b, 0);
+                for (int k = start; k < start + 2 * ry + 1; k++) {
+                    int slot = k % ring * width;
+                    rowSums(in, rows[k] * width, width, rx, columns, sumR, sumG, sumB, slot);
+                    for (int x = 0; x < width; x++) {
+                        r[x] += sumR[slot + x];
+                        g[x] += sumG[slot + x];
+                        b[x] += sumB[slot + x];
+                    }
+                }
+
+                for (int y = start; y < end; y++) {
+                    int row = y * width;
+                    for (int x = 0; x < width; x++) {
+                        if (average) {
+                            out[row + x] = Pixels.opaque(r[x] / area, g[x] / area, b[x] / area);
+                        } else {
+                            out[row + x] = Pixels.opaque(abs255(r[x] * weight), abs255(g[x] * weight), abs255(b[x] * weight));
+                        }
+                    }
+
+                    //Slide the window one down
+                    if (y + 1 < end) {
+                        int leaving = y % ring * width;
+                        int entering = (y + 2 * ry + 1) % ring * width;
+                        rowSums(in, rows[y + 2 * ry + 1] * width, width, rx, columns, sumR, sumG, sumB, entering);
+                        for (int x = 0; x < width; x++) {
+                            r[x] += sumR[entering + x] - sumR[leaving + x];
+                            g[x] += sumG[entering + x] - sumG[leaving + x];
+                            b[x] += sumB[entering + x] - sumB[leaving + x];
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Sum a box's width of pixels around every pixel of a row, with a running sum
+     *
+     * @param in The original pixels
+     * @param row Where the row starts in in
+     * @param width The width of the image
+     * @param rx The horizontal radius
+     * @param columns Where to read for each column
+     * @param sumR Where the red sums go
+     * @param sumG Where the green sums go
+     * @param sumB Where the blue sums go
+     * @param offset Where in the sums this row's go
+     */
+    private static void rowSums(int[] in, int row, int width, int rx, int[] columns, int[] sumR, int[] sumG, int[] sumB, int offset) {
+        int r = 0, g = 0, b = 0;
+        for (int k = 0; k < 2 * rx + 1; k++) {
+            int p = in[row + columns[k]];
+            r += Pixels.red(p);
+            g += Pixels.green(p);
+            b += Pixels.blue(p);
+        }
+        for (int x = 0; x < width; x++) {
+            sumR[offset + x] = r;
+            sumG[offset + x] = g;
+            sumB[offset + x] = b;
+
+            //Slide the window one to the right
+            if (x + 1 < width) {
+                int leaving = in[row + columns[x]];
+                int entering = in[row + columns[x + 2 * rx + 1]];
+                r += Pixels.red(entering) - Pixels.red(leaving);
+                g += Pixels.green(entering) - Pixels.green(leaving);
+                b += Pixels.blue(entering) - Pixels.blue(leaving);
+            }
+        }
+    }
+
+    /**
+     * Convolve with a separable kernel as a horizontal pass then a vertical
+     * one. Like the box, each strip of rows keeps only as many rows of the
+     * horizontal pass as the kernel is tall, in a ring.
+     *
+     * @param in The original pixels
+     * @param out Where the result goes
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param horizontal The weights across
+     * @param vertical The weights down
+     * @param columns Where to read for each column
+     * @param rows Where to read for each row
+     */
+    private void separable(int[] in, int[] out, int width, int height, float[] horizontal, float[] vertical,
+            int[] columns, int[] rows) {
+        int strip = stripRows(vertical.length / 2, height);
+
+        bands.forEachRow(width * strip, (height + strip - 1) / strip, (first, last) -> {
+            int ring = vertical.length;
+            float[] passR = new float[ring * width];
+            float[] passG = new float[ring * width];
+            float[] passB = new float[ring * width];
+            float[] r = new float[width];
+            float[] g = new float[width];
+            float[] b = new float[width];
+
+            for (int s = first; s < last; s++) {
+                int start = s * strip;
+                int end = Math.min(height, start + strip);
+
+                //The first output row needs the whole kernel's height; every row after it needs one more
+                for (int k = start; k < start + ring - 1; k++) {
+                    horizontalPass(in, rows[k] * width, width, horizontal, columns, passR, passG, passB, k % ring * width);
+                }
+
+                for (int y = start; y < end; y++) {
+                    int entering = y + ring - 1;
+                    horizontalPass(in, rows[entering] * width, width, horizontal, columns, passR, passG, passB, entering % ring * width);
+
+                    Arrays.fill(r, 0);
+                    Arrays.fill(g, 0);
+                    Arrays.fill(b, 0);
+
+                    //Add whole rows at a time so we read memory in order
+                    for (int k = 0; k < vertical.length; k++) {
+                        int row = (y + k) % ring * width;
+                        float coefficient = vertical[k];
+                        for (int x = 0; x < width; x++) {
+                            r[x] += passR[row + x] * coefficient;
+                            g[x] += passG[row + x] * coefficient;
+                            b[x] += passB[row + x] * coefficient;
+                        }
+                    }
+
+                    int row = y * width;
+                    for (int x = 0; x < width; x++) {
+                        out[row + x] = Pixels.opaque(abs255(r[x]), abs255(g[x]), abs255(b[x]));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Run the horizontal weights across one row
+     *
+     * @param in The original pixels
+     * @param row Where the row starts in in
+     * @param width The width of the image
+     * @param horizontal The weights across
+     * @param columns Where to read for each column
+     * @param passR Where the red results go
+     * @param passG Where the green results go
+     * @param passB Where the blue results go
+     * @param offset Where in the results this row's go
+     */
+    private static void horizontalPass(int[] in, int row, int width, float[] horizontal, int[] columns,
+            float[] passR, float[] passG, float[] passB, int offset) {
+        for (int x = 0; x < width; x++) {
+            float r = 0, g = 0, b = 0;
+            for (int k = 0; k < horizontal.length; k++) {
+                int p = in[row + columns[x + k]];
+                float coefficient = horizontal[k];
+                r += Pixels.red(p) * coefficient;
+                g += Pixels.green(p) * coefficient;
+                b += Pixels.blue(p) * coefficient;
+            }
+            passR[offset + x] = r;
+            passG[offset + x] = g;
+            passB[offset + x] = b;
+        }
+    }
+
+    /**
+     * Convolve the long way, reading every cell of the kernel for every pixel
+     *
+     * @param in The original pixels
+     * @param out Where the result goes
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param kernel The kernel
+     * @param columns Where to read for each column
+     * @param rows Where to read for each row
+     */
+    private void dense(int[] in, int[] out, int width, int height, Kernel kernel, int[] columns, int[] rows) {
+        int kernelWidth = kernel.getWidth();
+        int kernelHeight = kernel.getHeight();
+
+        bands.forEachRow(width, height, (start, end) -> {
+            for (int y = start; y < end; y++) {
+                for (int x = 0; x < width; x++) {
+                    float r = 0, g = 0, b = 0;
+                    for (int yk = 0; yk < kernelHeight; yk++) {
+                        int row = rows[y + yk] * width;
+                        for (int xk = 0; xk < kernelWidth; xk++) {
+                            int p = in[row + columns[x + xk]];
+                            float coefficient = kernel.get(xk, yk);
+                            r += Pixels.red(p) * coefficient;
+                            g += Pixels.green(p) * coefficient;
+                            b += Pixels.blue(p) * coefficient;
+                        }
+                    }
+                    out[y * width + x] = Pixels.opaque(abs255(r), abs255(g), abs255(b));
+                }
+            }
+        });
+    }
+
+    /**
+     * Convolve through the frequency domain. The output is cut into tiles;
+     * each tile reads its pixels plus a margin the size of the kernel
+     * (overlap-save), gets transformed, multiplied by the kernel's transform and
+     * transformed back, and the margin is thrown away. Red and green ride
+     * together as the real and imaginary parts of one transform, since the
+     * kernel is real and keeps them apart.
+     *
+     * @param in The original pixels
+     * @param out Where the result goes
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param kernel The kernel
+     * @param columns Where to read for each column
+     * @param rows Where to read for each row
+     * @param size The width and height of a tile, a power of two
+     */
+    private void fft(int[] in, int[] out, int width, int height, Kernel kernel, int[] columns, int[] rows, int size) {
+        FourierTransform transform = new FourierTransform(size);
+        int rx = kernel.getWidth() / 2;
+        int ry = kernel.getHeight() / 2;
+        int across = size - 2 * rx;
+        int down = size - 2 * ry;
+
+        //Flip the kernel about its center and wrap it around the tile's corner,
+        //so multiplying spectra lines each weight up with the pixel it reads
+        double[] kernelRe = new double[size * size];
+        double[] kernelIm = new double[size * size];
+        for (int yk = 0; yk < kernel.getHeight(); yk++) {
+            for (int xk = 0; xk < kernel.getWidth(); xk++) {
+                int x = Math.floorMod(rx - xk, size);
+                int y = Math.floorMod(ry - yk, size);
+                kernelRe[y * size + x] = kernel.get(xk, yk);
+            }
+        }
+        transform.transform(kernelRe, kernelIm, false);
+
+        int tilesAcross = (width + across - 1) / across;
+        int tilesDown = (height + down - 1) / down;
+
+        bands.forEachRow(width * down, tilesDown, (start, end) -> {
+            double[] redGreenRe = new double[size * size];
+            double[] redGreenIm = new double[size * size];
+            double[] blueRe = new double[size * size];
+            double[] blueIm = new double[size * size];
+
+            for (int tileY = start; tileY < end; tileY++) {
+                for (int tileX = 0; tileX < tilesAcross; tileX++) {
+                    int x0 = tileX * across;
+                    int y0 = tileY * down;
+                    int tileWidth = Math.min(across, width - x0);
+                    int tileHeight = Math.min(down, height - y0);
+
+                    //Read the tile and its margin; anything past that stays zero
+                    Arrays.fill(redGreenRe, 0);
+                    Arrays.fill(redGreenIm, 0);
+                    Arrays.fill(blueRe, 0);
+                    Arrays.fill(blueIm, 0);
+                    for (int y = 0; y < tileHeight + 2 * ry; y++) {
+                        int row = rows[y0 + y] * width;
+                        for (int x = 0; x < tileWidth + 2 * rx; x++) {
+                            int p = in[row + columns[x0 + x]];
+                            redGreenRe[y * size + x] = Pixels.red(p);
+                            redGreenIm[y * size + x] = Pixels.green(p);
+                            blueRe[y * size + x] = Pixels.blue(p);
+                        }
+                    }
+
+                    transform.transform(redGreenRe, redGreenIm, false);
+                    transform.transform(blueRe, blueIm, false);
+                    for (int i = 0; i < size * size; i++) {
+                        double re = redGreenRe[i] * kernelRe[i] - redGreenIm[i] * kernelIm[i];
+                        redGreenIm[i] = redGreenRe[i] * kernelIm[i] + redGreenIm[i] * kernelRe[i];
+                        redGreenRe[i] = re;
+
+                        re = blueRe[i] * kernelRe[i] - blueIm[i] * kernelIm[i];
+                        blueIm[i] = blueRe[i] * kernelIm[i] + blueIm[i] * kernelRe[i];
+                        blueRe[i] = re;
+                    }
+                    transform.transform(redGreenRe, redGreenIm, true);
+                    transform.transform(blueRe, blueIm, true);
+
+                    //Keep only the middle, where the kernel never wrapped around
+                    for (int y = 0; y < tileHeight; y++) {
+                        int row = (y0 + y) * width + x0;
+                        int from = (y + ry) * size + rx;
+                        for (int x = 0; x < tileWidth; x++) {
+                            out[row + x] = Pixels.opaque(
+                                    round255(redGreenRe[from + x]), round255(redGreenIm[from + x]), round255(blueRe[from + x]));
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Make a channel from the transform positive and keep it within [0,255].
+     * The transform leaves a whole number like 25 as 24.9999999, so we nudge
+     * it before cutting off the fraction like the direct ways do.
+     *
+     * @param color The channel
+     * @return The channel as an int from 0 to 255
+     */
+    private static int round255(double color) {
+        int i = (int) (Math.abs(color) + 1e-6);
+        return i > 255 ? 255 : i;
+    }
+
+    /**
+     * Make a channel positive and keep it within [0,255]
+     *
+     * @param color The channel
+     * @return The channel as an int from 0 to 255
+     */
+    private static int abs255(float color) {
+        int i = (int) Math.abs(color);
+        return i > 255 ? 255 : i;
+    }
+}
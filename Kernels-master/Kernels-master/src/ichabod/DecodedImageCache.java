@@ -0,0 +1,279 @@
+package ichabod;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Keeps decoded source images in memory so every command on the same image
+ * doesn't decode the file again. Entries are keyed by path and modified time,
+ * so an edited file is decoded fresh. The budget is in pixel bytes rather than
+ * entries, since one big photo can cost as much as a hundred thumbnails.
+ *
+ * Cached images are always TYPE_INT_ARGB and are shared by every request that
+ * asks for them, so callers must only read from them. A cache can also hold
+ * images made from the files, under keys of the caller's choosing.
+ */
+public class DecodedImageCache {
+
+    /** The most pixel bytes we keep */
+    private final long maxBytes;
+
+    /** The entries, oldest access first */
+    private final LinkedHashMap<Key, BufferedImage> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    /** The pixel bytes currently held */
+    private long currentBytes;
+
+    /** How many lookups found their image */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** How many decodes we did */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** How many images were dropped to stay under budget */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /** Decodes that are running right now */
+    private final SingleFlight<Key, BufferedImage> decoding = new SingleFlight<>();
+
+    /**
+     * Create a cache
+     *
+     * @param maxBytes The most pixel bytes to keep
+     */
+    public DecodedImageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Build a cache from the -Dichabod.* system properties
+     *
+     * @return A cache configured from the command line
+     */
+    public static DecodedImageCache fromSystemProperties() {
+        return new DecodedImageCache(Long.getLong("ichabod.decodedCacheBytes", 128L * 1024 * 1024));
+    }
+
+    /**
+     * Get the decoded image for a file, decoding it if we don't have it
+     *
+     * @param path The image file
+     * @param lastModified When the file was last modified, in milliseconds
+     * @return The decoded image, which must not be modified, or null if the file isn't an image we can read
+     * @throws IOException If the file can't be read
+     */
+    public BufferedImage get(Path path, long lastModified) throws IOException {
+        return get(path, lastModified, 1);
+    }
+
+    /**
+     * Get a file decoded at a fraction of its resolution, decoding it if we
+     * don't have it. Only every subsampling-th pixel of every subsampling-th
+     * row is kept, which the decoder can do without building the full image.
+     *
+     * @param path The image file
+     * @param lastModified When the file was last modified, in milliseconds
+     * @param subsampling 1 for every pixel, 2 for every other one, and so on
+     * @return The decoded image, which must not be modified, or null if the file isn't an image we can read
+     * @throws IOException If the file can't be read
+     */
+    public BufferedImage get(Path path, long lastModified, int subsampling) throws IOException {
+        String name = path.toAbsolutePath().normalize().toString();
+        Key key = new Key(subsampling > 1 ? name + "|1/" + subsampling : name, lastModified);
+
+        synchronized (this) {
+            BufferedImage image = entries.get(key);
+            if (image != null) {
+                hits.incrementAndGet();
+                return image;
+            }
+        }
+
+        //Different commands on the same image often arrive together, so only one of them decodes it
+        return decoding.run(key, () -> {
+            misses.incrementAndGet();
+            BufferedImage image = subsampling > 1 ? decode(path, subsampling) : ImageIO.read(path.toFile());
+            if (image == null) {
+                return null;
+            }
+            //Keep it in the layout the kernels read directly
+            image = Pixels.toArgb(image);
+            put(key, image);
+            return image;
+        });
+    }
+
+    /**
+     * Decode every subsampling-th pixel of a file
+     *
+     * @param path The image file
+     * @param subsampling How many pixels each one we keep stands for, across and down
+     * @return The image, or null if it isn't an image we can read
+     * @throws IOException If the file can't be read
+     */
+    private static BufferedImage decode(Path path, int subsampling) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(path.toFile())) {
+            if (input == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Look up an image that was made from a source image rather than decoded,
+     * like the partial result of a pipeline
+     *
+     * @param key What it was stored under, which should name the file and its modified time
+     * @return The image, which must not be modified, or null if we don't have it
+     */
+    public BufferedImage getDerived(String key) {
+        synchronized (this) {
+            BufferedImage image = entries.get(new Key(key, -1));
+            if (image != null) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Keep an image that was made from a source image
+     *
+     * @param key What to store it under, which should name the file and its modified time
+     * @param image The image, which nobody may modify from now on
+     */
+    public void putDerived(String key, BufferedImage image) {
+        put(new Key(key, -1), image);
+    }
+
+    /**
+     * Add an image, evicting the least recently used until we're under budget
+     *
+     * @param key The file and modified time
+     * @param image The decoded image
+     */
+    private synchronized void put(Key key, BufferedImage image) {
+        long size = sizeOf(image);
+        if (size > maxBytes) {
+            return; //It would push everything else out
+        }
+
+        BufferedImage old = entries.put(key, image);
+        if (old != null) {
+            currentBytes -= sizeOf(old);
+        }
+        currentBytes += size;
+
+        Iterator<Map.Entry<Key, BufferedImage>> iterator = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Key, BufferedImage> eldest = iterator.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            currentBytes -= sizeOf(eldest.getValue());
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Work out how much memory an image's pixels take
+     *
+     * @param image The image
+     * @return The size of its data buffer in bytes
+     */
+    static long sizeOf(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    /**
+     * @return How many lookups found their image
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return How many decodes we did
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return How many images were dropped to stay under budget
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return The pixel bytes currently held
+     */
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    /**
+     * @return The counters as a JSON object
+     */
+    public String statsJson() {
+        return "{\"hits\":" + getHits() + ",\"misses\":" + getMisses() + ",\"coalesced\":" + decoding.getCoalesced()
+                + ",\"evictions\":" + getEvictions() + ",\"bytes\":" + getCurrentBytes() + ",\"maxBytes\":" + maxBytes + "}";
+    }
+
+    /**
+     * A file at a moment in time
+     */
+    private static class Key {
+
+        private final String path;
+
+        private final long lastModified;
+
+        Key(String path, long lastModified) {
+            this.path = path;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return lastModified == other.lastModified && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode() * 31 + Long.hashCode(lastModified);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package ichabod;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Dithers an image to black and white by error diffusion. Each pixel's
+ * rounding error is pushed onto its neighbors: half to the right, and 3/16,
+ * 1/4 and 1/16 to the pixels below right, below and below left.
+ *
+ * A pixel only ever sends error to its own row and the one below, so we keep
+ * just those two rows of error instead of a whole image's worth, and walk them
+ * in the same order as the pixels.
+ *
+ * Each pixel depends on the one before it, but only on the row above as far
+ * as one pixel to its right. So on a big image the rows can run at the same
+ * time on different threads, each trailing the one above it like a wave. The
+ * result is the same as doing it one row at a time.
+ */
+public class ErrorDiffusion {
+
+    /** Decides how many threads an image gets */
+    private final RowBands bands;
+
+    /** How many pixels a row does between telling the row below how far it got */
+    private final int lag;
+
+    /**
+     * Create a ditherer
+     *
+     * @param bands Decides how many threads an image gets
+     * @param lag How many pixels a row does between telling the row below how far it got
+     */
+    public ErrorDiffusion(RowBands bands, int lag) {
+        this.bands = bands;
+        this.lag = Math.max(1, lag);
+    }
+
+    /**
+     * Build a ditherer from the -Dichabod.* system properties
+     *
+     * @param bands Decides how many threads an image gets
+     * @return A ditherer configured from the command line
+     */
+    public static ErrorDiffusion fromSystemProperties(RowBands bands) {
+        return new ErrorDiffusion(bands, Integer.getInteger("ichabod.ditherLag", 64));
+    }
+
+    /**
+     * Dither the red channel of an image to black and white
+     *
+     * @param in The original pixels
+     * @param out Where the black and white pixels go
+     * @param width The width of the image
+     * @param height The height of the image
+     */
+    public void monochrome(int[] in, int[] out, int width, int height) {
+        int workers = bands.workersFor(width, height);
+
+        if (workers <= 1) {
+            //Row y reads errors[y % 2] and writes row y + 1's into the other one
+            int[][] errors = new int[2][width];
+            for (int y = 0; y < height; y++) {
+                row(in, out, width, height, y, errors[y % 2], errors[(y + 1) % 2], null, 0);
+            }
+            return;
+        }
+
+        //Every row in flight needs its own error row, plus one for the row after the last
+        int ring = workers + 1;
+        int[][] errors = new int[ring][width];
+
+        //How far each row has got. A slot is reused by every ring-th row, so the
+        //value is row * (width + 1) + pixels done, which only ever goes up.
+        AtomicLongArray progress = new AtomicLongArray(ring);
+        AtomicInteger nextRow = new AtomicInteger();
+
+        bands.runWorkers(workers, () -> {
+            //Rows are taken in order, so whoever has the row above us is already running
+            for (int y = nextRow.getAndIncrement(); y < height; y = nextRow.getAndIncrement()) {
+                row(in, out, width, height, y, errors[y % ring], errors[(y + 1) % ring], progress, ring);
+            }
+        });
+    }
+
+    /**
+     * Dither an image to a palette with Floyd-Steinberg weights: 7/16 of each
+     * channel's error to the right, and 3/16, 5/16 and 1/16 to the pixels
+     * below left, below and below right. Like monochrome, it only keeps two
+     * rows of error. It runs on one thread.
+     *
+     * @param in The original pixels
+     * @param out Where the dithered pixels go
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param palette The palette as packed pixels
+     * @param lookup Finds the nearest palette color
+     */
+    public void palette(int[] in, int[] out, int width, int height, int[] palette, PaletteLookup lookup) {
+        //One error row per channel for this row and the next, with a spare
+        //column on each side so the neighbors never need an edge check
+        int[][] current = new int[3][width + 2];
+        int[][] next = new int[3][width + 2];
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int pixel = in[y * width + x];
+                int r = clamp(Pixels.red(pixel) + current[0][x + 1]);
+                int g = clamp(Pixels.green(pixel) + current[1][x + 1]);
+                int b = clamp(Pixels.blue(pixel) + current[2][x + 1]);
+
+                int chosen = palette[lookup.nearest(r, g, b)];
+                out[y * width + x] = chosen;
+
+                spread(current[0], next[0], x + 1, r - Pixels.red(chosen));
+                spread(current[1], next[1], x + 1, g - Pixels.green(chosen));
+                spread(current[2], next[2], x + 1, b - Pixels.blue(chosen));
+            }
+
+            int[][] swap = current;
+            current = next;
+            next = swap;
+            for (int[] channel : next) {
+                Arrays.fill(channel, 0);
+            }
+        }
+    }
+
+    /**
+     * Push one channel's error onto the neighbors with Floyd-Steinberg weights
+     *
+     * @param current This row's error, offset by one column
+     * @param next The next row's error, offset by one column
+     * @param x The pixel's column plus one
+     * @param error The error
+     */
+    private static void spread(int[] current, int[] next, int x, int error) {
+        current[x + 1] += error * 7 / 16;
+        next[x - 1] += error * 3 / 16;
+        next[x] += error * 5 / 16;
+        next[x + 1] += error / 16;
+    }
+
+    /**
+     * @param value A channel value with error added
+     * @return The value kept within [0,255]
+     */
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    /**
+     * Dither one row
+     *
+     * @param in The original pixels
+     * @param out Where the black and white pixels go
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param y The row
+     * @param incoming The error the row above left for this row
+     * @param outgoing Where this row leaves error for the row below
+     * @param progress How far each row has got, or null if rows run one at a time
+     * @param ring How many slots progress has
+     */
+    private void row(int[] in, int[] out, int width, int height, int y, int[] incoming, int[] outgoing,
+            AtomicLongArray progress, int ring) {
+
+        boolean last = y + 1 >= height;
+        if (!last) {
+            //The row that used this last finished before we started
+            Arrays.fill(outgoing, 0);
+        }
+
+        //How far the row above has got, so we know how much of incoming is finished
+        long aboveStart = (long) (y - 1) * (width + 1);
+        int aboveDone = progress == null || y == 0 ? width : 0;
+        long start = (long) y * (width + 1);
+
+        //The error from the pixel to our left
+        int carry = 0;
+
+        for (int x = 0; x < width; x++) {
+
+            //incoming[x] is final once the row above has done the pixel to its right
+            int needed = Math.min(x + 2, width);
+            while (aboveDone < needed) {
+                aboveDone = (int) (progress.get((y - 1) % ring) - aboveStart);
+                if (aboveDone < needed) {
+                    Thread.yield();
+                }
+            }
+
+            int grayscale = Pixels.red(in[y * width + x]) + incoming[x] + carry;
+
+            int newgrayscale = grayscale > 128 ? 255 : 0;
+
+            int totalerror = grayscale - newgrayscale;
+
+            carry = totalerror / 2;
+            if (!last) {
+                if (x + 1 < width) {
+                    outgoing[x + 1] += 3 * totalerror / 16;
+                }
+                outgoing[x] += totalerror / 4;
+                if (x > 0) {
+                    outgoing[x - 1] += totalerror / 16;
+                }
+            }
+
+            out[y * width + x] = Pixels.opaque(newgrayscale, newgrayscale, newgrayscale);
+
+            if (progress != null && (x + 1) % lag == 0) {
+                progress.set(y % ring, start + x + 1);
+            }
+        }
+
+        if (progress != null) {
+            progress.set(y % ring, start + width);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package ichabod;
+
+/**
+ * A square 2-D fast Fourier transform whose size is a power of two. The
+ * twiddle factors and bit-reversal order are worked out once, so one of these
+ * can transform as many tiles as we like. It holds no per-tile state and can
+ * be shared between threads.
+ */
+class FourierTransform {
+
+    /** The width and height of a tile */
+    private final int size;
+
+    /** Where each index goes when the input is put in bit-reversed order */
+    private final int[] reversed;
+
+    /** cos(2 pi k / size) for the first half of the circle */
+    private final double[] cos;
+
+    /** sin(2 pi k / size) for the first half of the circle */
+    private final double[] sin;
+
+    /**
+     * Prepare transforms of one size
+     *
+     * @param size The width and height of a tile, a power of two
+     */
+    FourierTransform(int size) {
+        if (Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("size must be a power of two");
+        }
+        this.size = size;
+
+        int bits = Integer.numberOfTrailingZeros(size);
+        reversed = new int[size];
+        for (int i = 0; i < size; i++) {
+            reversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+
+        cos = new double[size / 2];
+        sin = new double[size / 2];
+        for (int k = 0; k < size / 2; k++) {
+            cos[k] = Math.cos(2 * Math.PI * k / size);
+            sin[k] = Math.sin(2 * Math.PI * k / size);
+        }
+    }
+
+    /**
+     * @return The width and height of a tile
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Transform a tile in place. Walking down columns is slow, so this
+     * transforms the rows, transposes the tile and transforms the rows again.
+     * That leaves a forward transform transposed; it doesn't matter for
+     * multiplying two spectra made the same way, and the inverse transposes
+     * it back.
+     *
+     * @param re The real parts, row by row, size * size long
+     * @param im The imaginary parts, row by row, size * size long
+     * @param inverse True for the inverse transform, which also divides by size * size
+     */
+    void transform(double[] re, double[] im, boolean inverse) {
+        for (int row = 0; row < size; row++) {
+            line(re, im, row * size, inverse);
+        }
+        transpose(re);
+        transpose(im);
+        for (int row = 0; row < size; row++) {
+            line(re, im, row * size, inverse);
+        }
+
+        if (inverse) {
+            double scale = 1.0 / ((double) size * size);
+            for (int i = 0; i < re.length; i++) {
+                re[i] *= scale;
+                im[i] *= scale;
+            }
+        }
+    }
+
+    /**
+     * Transpose a tile in place
+     *
+     * @param values The tile, row by row
+     */
+    private void transpose(double[] values) {
+        for (int y = 0; y < size; y++) {
+            for (int x = y + 1; x < size; x++) {
+                double t = values[y * size + x];
+                values[y * size + x] = values[x * size + y];
+                values[x * size + y] = t;
+            }
+        }
+    }
+
+    /**
+     * Transform one row in place with an iterative radix-2 FFT
+     *
+     * @param re The real parts
+     * @param im The imaginary parts
+     * @param offset Where the row starts
+     * @param inverse True for the inverse transform, without the division
+     */
+    private void line(double[] re, double[] im, int offset, boolean inverse) {
+        //Put the row in bit-reversed order
+        for (int i = 0; i < size; i++) {
+            int j = reversed[i];
+            if (j > i) {
+                int a = offset + i;
+                int b = offset + j;
+                double t = re[a];
+                re[a] = re[b];
+                re[b] = t;
+                t = im[a];
+                im[a] = im[b];
+                im[b] = t;
+            }
+        }
+
+        double sign = inverse ? 1 : -1;
+        for (int length = 2; length <= size; length <<= 1) {
+            int half = length / 2;
+            int step = size / length;
+            for (int k = 0; k < half; k++) {
+                double wr = cos[k * step];
+                double wi = sign * sin[k * step];
+
+                for (int a = offset + k; a < offset + size; a += length) {
+                    int b = a + half;
+
+                    double xr = re[b] * wr - im[b] * wi;
+                    double xi = re[b] * wi + im[b] * wr;
+
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ichabod;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A request the browser sent us: the request line plus its headers. The body,
+ * if any, is never read since we only serve GETs.
+ */
+public class HttpRequest {
+
+    /** The method, e.g., GET */
+    private final String method;
+
+    /** The requested path, including any ?arguments */
+    private final String target;
+
+    /** The protocol version, e.g., HTTP/1.1 */
+    private final String version;
+
+    /** The headers, keyed by lower case name */
+    private final Map<String, String> headers;
+
+    /**
+     * Create a request
+     *
+     * @param method The method, e.g., GET
+     * @param target The requested path
+     * @param version The protocol version
+     * @param headers The headers, keyed by lower case name
+     */
+    public HttpRequest(String method, String target, String version, Map<String, String> headers) {
+        this.method = method;
+        this.target = target;
+        this.version = version;
+        this.headers = headers;
+    }
+
+    /**
+     * Parse the head of a request, i.e., everything before the blank line
+     *
+     * @param head The request line and header lines
+     * @return The request, or null if the request line doesn't make sense
+     */
+    public static HttpRequest parse(String head) {
+        String[] lines = head.split("\r?\n");
+
+        //The first line should look like GET /index.html HTTP/1.1
+        String[] splits = lines[0].split(" ");
+        if (splits.length < 2) {
+            return null;
+        }
+        String version = splits.length > 2 ? splits[2] : "HTTP/1.0";
+
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+            }
+        }
+
+        return new HttpRequest(splits[0], splits[1], version, headers);
+    }
+
+    /**
+     * @return The method, e.g., GET
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return The requested path, including any ?arguments
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return The protocol version, e.g., HTTP/1.1
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return True if the headers say a body follows. We don't read bodies, so
+     * the connection can't be used again after one.
+     */
+    public boolean hasBody() {
+        String length = getHeader("Content-Length");
+        return getHeader("Transfer-Encoding") != null || (length != null && !length.equals("0"));
+    }
+
+    /**
+     * Look up a header
+     *
+     * @param name The header name, in any case
+     * @return The header's value or null if it wasn't sent
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+}
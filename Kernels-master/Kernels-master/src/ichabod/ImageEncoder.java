@@ -0,0 +1,667 @@
+package ichabod;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Turns a result image into bytes to send: PNG, JPEG or uncompressed BMP.
+ *
+ * PNG is written here rather than by ImageIO so we choose the deflate level
+ * and the row filter, and so an opaque image goes out as RGB instead of RGBA.
+ * BMP is just the pixels with a header. JPEG goes through ImageIO at the
+ * quality the request asked for.
+ *
+ * Each thread keeps its own Deflater, JPEG writer and buffers, so encoding
+ * allocates little beyond the result itself and never waits on another thread.
+ */
+public class ImageEncoder {
+
+    /** An output format */
+    public enum Format {
+        PNG("image/png", 100),
+        JPEG("image/jpeg", 75),
+        BMP("image/bmp", 4);
+
+        /** What we send as the Content-Type */
+        private final String mimeType;
+
+        /** About how many nanoseconds encoding takes per pixel on one core */
+        private final double nanosPerPixel;
+
+        Format(String mimeType, double nanosPerPixel) {
+            this.mimeType = mimeType;
+            this.nanosPerPixel = nanosPerPixel;
+        }
+
+        /**
+         * @return What we send as the Content-Type
+         */
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        /**
+         * @return About how many nanoseconds encoding takes per pixel on one core
+         */
+        public double getNanosPerPixel() {
+            return nanosPerPixel;
+        }
+
+        /**
+         * Look up a format by the name a request would use
+         *
+         * @param name png, jpeg, jpg or bmp, in any case
+         * @return The format
+         * @throws IllegalArgumentException If it isn't one of ours
+         */
+        public static Format fromName(String name) {
+            String lower = name.toLowerCase();
+            if (lower.equals("jpg")) {
+                return JPEG;
+            }
+            for (Format format : values()) {
+                if (format.name().toLowerCase().equals(lower)) {
+                    return format;
+                }
+            }
+            throw new IllegalArgumentException("Unknown format " + name);
+        }
+
+        /**
+         * Pick the format from a request's arguments
+         *
+         * @param arguments The request's arguments, whose format defaults to png
+         * @return The format
+         * @throws IllegalArgumentException If the format isn't one of ours
+         */
+        public static Format fromArguments(Map<String, String> arguments) {
+            return arguments.containsKey("format") ? fromName(arguments.get("format")) : PNG;
+        }
+    }
+
+    /** How PNG rows are filtered before they're deflated */
+    public enum Filter {
+        /** Leave the rows as they are; the fastest */
+        NONE,
+        /** Each byte minus the one to its left */
+        SUB,
+        /** Each byte minus the one above */
+        UP,
+        /** Each byte minus the average of left and above */
+        AVERAGE,
+        /** Each byte minus whichever of left, above and above-left best predicts it */
+        PAETH,
+        /** Try every filter on every row and keep the one that looks most compressible, like ImageIO does */
+        ADAPTIVE
+    }
+
+    /** The bytes every PNG starts with */
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /** PNG color types */
+    private static final int PNG_RGB = 2;
+    private static final int PNG_RGBA = 6;
+
+    /** The deflate level for PNGs, 0 (stored) to 9 (smallest) */
+    private final int pngLevel;
+
+    /** How PNG rows are filtered */
+    private final Filter pngFilter;
+
+    /** JPEG quality when the request doesn't ask, 1 to 100 */
+    private final int jpegQuality;
+
+    /** Each thread's deflater, JPEG writer and buffers */
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * Create an encoder
+     *
+     * @param pngLevel The deflate level for PNGs, 0 (stored) to 9 (smallest)
+     * @param pngFilter How PNG rows are filtered
+     * @param jpegQuality JPEG quality when the request doesn't ask, 1 to 100
+     */
+    public ImageEncoder(int pngLevel, Filter pngFilter, int jpegQuality) {
+        if (pngLevel < 0 || pngLevel > 9) {
+            throw new IllegalArgumentException("The PNG level must be between 0 and 9");
+        }
+        this.pngLevel = pngLevel;
+        this.pngFilter = pngFilter;
+        this.jpegQuality = checkQuality(jpegQuality);
+    }
+
+    /**
+     * Build an encoder from the -Dichabod.* system properties
+     *
+     * @return An encoder configured from the command line
+     */
+    public static ImageEncoder fromSystemProperties() {
+        return new ImageEncoder(
+                Integer.getInteger("ichabod.pngLevel", 1),
+                Filter.valueOf(System.getProperty("ichabod.pngFilter", "up").toUpperCase()),
+                Integer.getInteger("ichabod.jpegQuality", 85));
+    }
+
+    /**
+     * @param quality A JPEG quality
+     * @return The same quality
+     * @throws IllegalArgumentException If it isn't between 1 and 100
+     */
+    private static int checkQuality(int quality) {
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException("quality must be between 1 and 100");
+        }
+        return quality;
+    }
+
+    /**
+     * Work out which format to send from an Accept header. Each of our
+     * formats gets the q-value of the most specific range that matches it
+     * (image/png over image/* over * / *), and the highest wins. Ties go to
+     * PNG, then JPEG, then BMP.
+     *
+     * @param accept The Accept header, or null if there wasn't one
+     * @return The format to send; PNG if there was no header or it accepts none of ours
+     */
+    public static Format negotiate(String accept) {
+        if (accept == null || accept.trim().isEmpty()) {
+            return Format.PNG;
+        }
+
+        Format best = Format.PNG;
+        double bestQ = 0;
+        for (Format format : Format.values()) {
+            double q = acceptance(accept, format.getMimeType());
+            if (q > bestQ) {
+                best = format;
+                bestQ = q;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param accept An Accept header
+     * @param mimeType One of our types, e.g., image/png
+     * @return The q-value of the most specific range that matches the type, 0 if none does
+     */
+    private static double acceptance(String accept, String mimeType) {
+        int bestSpecificity = -1;
+        double q = 0;
+        for (String range : accept.split(",")) {
+            String[] parts = range.trim().split(";");
+            String type = parts[0].trim().toLowerCase();
+            if (type.equals("image/jpg")) {
+                type = "image/jpeg";
+            }
+
+            int specificity;
+            if (type.equals(mimeType)) {
+                specificity = 2;
+            } else if (type.equals("image/*")) {
+                specificity = 1;
+            } else if (type.equals("*/*")) {
+                specificity = 0;
+            } else {
+                continue;
+            }
+            if (specificity <= bestSpecificity) {
+                continue;
+            }
+
+            double rangeQ = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        rangeQ = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException ex) {
+                        rangeQ = 0; //A q we can't read doesn't count as accepting it
+                    }
+                }
+            }
+            bestSpecificity = specificity;
+            q = rangeQ;
+        }
+        return q;
+    }
+
+    /**
+     * Pick the JPEG quality from a request's arguments. Call it before doing
+     * any work to find out if the quality is no good.
+     *
+     * @param arguments The request's arguments, whose quality defaults to ichabod.jpegQuality
+     * @return The quality, 1 to 100
+     * @throws IllegalArgumentException If the quality is no good
+     */
+    public int quality(Map<String, String> arguments) {
+        if (arguments.containsKey("quality")) {
+            return checkQuality(Integer.parseInt(arguments.get("quality")));
+        }
+        return jpegQuality;
+    }
+
+    /**
+     * Encode an image
+     *
+     * @param image A TYPE_INT_ARGB image
+     * @param format The format to encode it in
+     * @param arguments The request's arguments, whose quality (1 to 100) is used for JPEG
+     * @return The encoded image
+     * @throws IOException If ImageIO can't write it
+     * @throws IllegalArgumentException If the quality is no good
+     */
+    public byte[] encode(BufferedImage image, Format format, Map<String, String> arguments) throws IOException {
+        int quality = quality(arguments);
+
+        Scratch buffers = scratch.get();
+        try {
+            switch (format) {
+                case JPEG:
+                    return jpeg(image, quality, buffers);
+                case BMP:
+                    return bmp(image);
+                default:
+                    return png(image, buffers);
+            }
+        } finally {
+            buffers.trim();
+        }
+    }
+
+    /**
+     * Write a PNG. The filtered rows are deflated in one go and sent as a
+     * single IDAT chunk.
+     *
+     * @param image A TYPE_INT_ARGB image
+     * @param buffers This thread's scratch space
+     * @return The PNG
+     * @throws IOException Never, since it only writes to memory
+     */
+    private byte[] png(BufferedImage image, Scratch buffers) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = Pixels.data(image);
+
+        //Most results are opaque, and a quarter fewer bytes to filter and deflate is worth a look
+        boolean opaque = true;
+        for (int pixel : pixels) {
+            if ((pixel >>> 24) != 0xFF) {
+                opaque = false;
+                break;
+            }
+        }
+        int bytesPerPixel = opaque ? 3 : 4;
+        int rowBytes = width * bytesPerPixel;
+
+        byte[] previous = buffers.row(0, rowBytes);
+        byte[] current = buffers.row(1, rowBytes);
+        byte[] filtered = buffers.row(2, rowBytes + 1);
+        Arrays.fill(previous, (byte) 0);
+
+        Deflater deflater = buffers.deflater;
+        deflater.reset();
+        deflater.setLevel(pngLevel);
+        buffers.compressed.reset();
+        DeflaterOutputStream deflated = new DeflaterOutputStream(buffers.compressed, deflater, 64 * 1024);
+
+        for (int y = 0; y < height; y++) {
+            //Unpack the row into bytes
+            int i = 0;
+            for (int x = 0, p = y * width; x < width; x++, p++) {
+                int pixel = pixels[p];
+                current[i++] = (byte) (pixel >> 16);
+                current[i++] = (byte) (pixel >> 8);
+                current[i++] = (byte) pixel;
+                if (!opaque) {
+                    current[i++] = (byte) (pixel >>> 24);
+                }
+            }
+
+            if (pngFilter == Filter.ADAPTIVE) {
+                adaptive(current, previous, filtered, rowBytes, bytesPerPixel, buffers);
+            } else {
+                filter(pngFilter, current, previous, filtered, rowBytes, bytesPerPixel);
+            }
+            deflated.write(filtered, 0, rowBytes + 1);
+
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        deflated.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(buffers.compressed.size() + 64);
+        out.write(PNG_SIGNATURE);
+
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8; //Bits per channel
+        header[9] = (byte) (opaque ? PNG_RGB : PNG_RGBA);
+        //Compression, filter method and interlacing are all 0
+        chunk(out, "IHDR", header, header.length, buffers.crc);
+
+        chunk(out, "IDAT", buffers.compressed.bytes(), buffers.compressed.size(), buffers.crc);
+        chunk(out, "IEND", header, 0, buffers.crc);
+        return out.toByteArray();
+    }
+
+    /**
+     * Filter a row with every filter and keep the one whose bytes, read as
+     * signed, add up to the least. It's the usual guess at what will deflate
+     * best.
+     *
+     * @param current The row
+     * @param previous The row above, zeros for the first
+     * @param filtered Where the filter type and filtered row go
+     * @param rowBytes How many bytes the row has
+     * @param bytesPerPixel How many bytes a pixel has
+     * @param buffers This thread's scratch space
+     */
+    private static void adaptive(byte[] current, byte[] previous, byte[] filtered, int rowBytes, int bytesPerPixel, Scratch buffers) {
+        byte[] trial = buffers.row(3, rowBytes + 1);
+        long best = Long.MAX_VALUE;
+        for (Filter filter : new Filter[]{Filter.NONE, Filter.SUB, Filter.UP, Filter.AVERAGE, Filter.PAETH}) {
+            filter(filter, current, previous, trial, rowBytes, bytesPerPixel);
+            long sum = 0;
+            for (int i = 1; i <= rowBytes; i++) {
+                sum += Math.abs(trial[i]);
+            }
+            if (sum < best) {
+                best = sum;
+                System.arraycopy(trial, 0, filtered, 0, rowBytes + 1);
+            }
+        }
+    }
+
+    /**
+     * Filter a row
+     *
+     * @param filter Any filter but ADAPTIVE
+     * @param current The row
+     * @param previous The row above, zeros for the first
+     * @param filtered Where the filter type and filtered row go
+     * @param rowBytes How many bytes the row has
+     * @param bytesPerPixel How many bytes a pixel has
+     */
+    private static void filter(Filter filter, byte[] current, byte[] previous, byte[] filtered, int rowBytes, int bytesPerPixel) {
+        filtered[0] = (byte) filter.ordinal();
+        switch (filter) {
+            case NONE:
+                System.arraycopy(current, 0, filtered, 1, rowBytes);
+                break;
+            case SUB:
+                for (int i = 0; i < rowBytes; i++) {
+                    int left = i >= bytesPerPixel ? current[i - bytesPerPixel] : 0;
+                    filtered[i + 1] = (byte) (current[i] - left);
+                }
+                break;
+            case UP:
+                for (int i = 0; i < rowBytes; i++) {
+                    filtered[i + 1] = (byte) (current[i] - previous[i]);
+                }
+                break;
+            case AVERAGE:
+                for (int i = 0; i < rowBytes; i++) {
+                    int left = i >= bytesPerPixel ? current[i - bytesPerPixel] & 0xFF : 0;
+                    filtered[i + 1] = (byte) (current[i] - ((left + (previous[i] & 0xFF)) >> 1));
+                }
+                break;
+            default:
+                for (int i = 0; i < rowBytes; i++) {
+                    int left = i >= bytesPerPixel ? current[i - bytesPerPixel] & 0xFF : 0;
+                    int above = previous[i] & 0xFF;
+                    int aboveLeft = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+                    filtered[i + 1] = (byte) (current[i] - paeth(left, above, aboveLeft));
+                }
+                break;
+        }
+    }
+
+    /**
+     * @param left The byte to the left
+     * @param above The byte above
+     * @param aboveLeft The byte above and to the left
+     * @return Whichever of the three is closest to left + above - aboveLeft
+     */
+    private static int paeth(int left, int above, int aboveLeft) {
+        int estimate = left + above - aboveLeft;
+        int toLeft = Math.abs(estimate - left);
+        int toAbove = Math.abs(estimate - above);
+        int toAboveLeft = Math.abs(estimate - aboveLeft);
+        if (toLeft <= toAbove && toLeft <= toAboveLeft) {
+            return left;
+        }
+        if (toAbove <= toAboveLeft) {
+            return above;
+        }
+        return aboveLeft;
+    }
+
+    /**
+     * Write a PNG chunk: its length, type, data and CRC
+     *
+     * @param out Where to write it
+     * @param type The four letter type
+     * @param data The data
+     * @param length How many bytes of data there are
+     * @param crc A CRC to reuse
+     */
+    private static void chunk(ByteArrayOutputStream out, String type, byte[] data, int length, CRC32 crc) {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        byte[] number = new byte[4];
+
+        putInt(number, 0, length);
+        out.write(number, 0, 4);
+        out.write(typeBytes, 0, 4);
+        out.write(data, 0, length);
+
+        crc.reset();
+        crc.update(typeBytes, 0, 4);
+        crc.update(data, 0, length);
+        putInt(number, 0, (int) crc.getValue());
+        out.write(number, 0, 4);
+    }
+
+    /**
+     * Write an int big-endian, the way PNG wants it
+     *
+     * @param bytes Where to write it
+     * @param offset Where its first byte goes
+     * @param value The int
+     */
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Write a JPEG through ImageIO. JPEG has no alpha, so the writer sees the
+     * same pixels as RGB without them being copied.
+     *
+     * @param image A TYPE_INT_ARGB image
+     * @param quality 1 to 100
+     * @param buffers This thread's scratch space
+     * @return The JPEG
+     * @throws IOException If ImageIO can't write it
+     */
+    private static byte[] jpeg(BufferedImage image, int quality, Scratch buffers) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        DirectColorModel rgb = new DirectColorModel(24, 0x00FF0000, 0x0000FF00, 0x000000FF);
+        WritableRaster raster = Raster.createPackedRaster((DataBufferInt) image.getRaster().getDataBuffer(), width, height, width,
+                new int[]{0x00FF0000, 0x0000FF00, 0x000000FF}, null);
+        BufferedImage opaque = new BufferedImage(rgb, raster, false, null);
+
+        ImageWriter writer = buffers.jpegWriter();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(width * height / 4 + 1024);
+        try (MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(opaque, null, null), param);
+        } finally {
+            writer.setOutput(null);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Write an uncompressed 24-bit BMP. There's no alpha; it's the pixels and
+     * a header, bottom row first with each row padded to four bytes.
+     *
+     * @param image A TYPE_INT_ARGB image
+     * @return The BMP
+     */
+    private static byte[] bmp(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = Pixels.data(image);
+        int rowBytes = (width * 3 + 3) & ~3;
+        int headerBytes = 14 + 40;
+        byte[] bmp = new byte[headerBytes + rowBytes * height];
+
+        //File header, then the BITMAPINFOHEADER. Everything is little-endian.
+        bmp[0] = 'B';
+        bmp[1] = 'M';
+        putLittleInt(bmp, 2, bmp.length);
+        putLittleInt(bmp, 10, headerBytes);
+        putLittleInt(bmp, 14, 40);
+        putLittleInt(bmp, 18, width);
+        putLittleInt(bmp, 22, height);
+        bmp[26] = 1; //One plane
+        bmp[28] = 24; //Bits per pixel
+        //No compression, and the rest can be 0
+        putLittleInt(bmp, 34, rowBytes * height);
+
+        for (int y = 0; y < height; y++) {
+            int i = headerBytes + (height - 1 - y) * rowBytes;
+            for (int x = 0, p = y * width; x < width; x++, p++) {
+                int pixel = pixels[p];
+                bmp[i++] = (byte) pixel;
+                bmp[i++] = (byte) (pixel >> 8);
+                bmp[i++] = (byte) (pixel >> 16);
+            }
+        }
+        return bmp;
+    }
+
+    /**
+     * Write an int little-endian, the way BMP wants it
+     *
+     * @param bytes Where to write it
+     * @param offset Where its first byte goes
+     * @param value The int
+     */
+    private static void putLittleInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+
+    /**
+     * One thread's reusable encoding state
+     */
+    private static class Scratch {
+
+        /** The biggest deflated image a thread holds on to between images */
+        private static final int MAX_KEPT_COMPRESSED = 4 * 1024 * 1024;
+
+        /** The biggest row buffer a thread holds on to between images */
+        private static final int MAX_KEPT_ROW = 64 * 1024;
+
+        /** Deflates PNG rows; reset before each image */
+        private final Deflater deflater = new Deflater();
+
+        /** Checks PNG chunks */
+        private final CRC32 crc = new CRC32();
+
+        /** The deflated rows of the PNG being written */
+        private Bytes compressed = new Bytes();
+
+        /** Row buffers, grown as wider images come along */
+        private final byte[][] rows = new byte[4][];
+
+        /** Writes JPEGs, made the first time one is asked for */
+        private ImageWriter jpegWriter;
+
+        /**
+         * @param index Which row buffer
+         * @param length How many bytes it needs
+         * @return The buffer, at least that long
+         */
+        byte[] row(int index, int length) {
+            if (rows[index] == null || rows[index].length < length) {
+                rows[index] = new byte[length];
+            }
+            return rows[index];
+        }
+
+        /**
+         * Let go of buffers an unusually big image grew, so every thread that
+         * ever encoded one doesn't keep that much memory for good
+         */
+        void trim() {
+            if (compressed.capacity() > MAX_KEPT_COMPRESSED) {
+                compressed = new Bytes();
+            }
+            for (int i = 0; i < rows.length; i++) {
+                if (rows[i] != null && rows[i].length > MAX_KEPT_ROW) {
+                    rows[i] = null;
+                }
+            }
+        }
+
+        /**
+         * @return This thread's JPEG writer
+         */
+        ImageWriter jpegWriter() {
+            if (jpegWriter == null) {
+                jpegWriter = ImageIO.getImageWritersByFormatName("jpeg").next();
+            }
+            return jpegWriter;
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream we can read without copying
+     */
+    private static class Bytes extends ByteArrayOutputStream {
+
+        /**
+         * @return The bytes written so far, then unused space
+         */
+        byte[] bytes() {
+            return buf;
+        }
+
+        /**
+         * @return How many bytes it can hold before growing
+         */
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
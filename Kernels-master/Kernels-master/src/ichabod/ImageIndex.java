@@ -0,0 +1,369 @@
+package ichabod;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * The list of images we serve, built once when the server starts and kept up
+ * to date by watching the directory. The getFileList responses are rendered
+ * ahead of time and only rebuilt when something changes.
+ *
+ * Each image's size is read from its header, without decoding the pixels, so
+ * the browser can lay out the gallery before it fetches anything.
+ */
+public class ImageIndex {
+
+    /** List of image types we support. Any other file extensions will not be served by our system as images. */
+    private static final String[] IMAGE_EXTENSIONS = new String[]{".jpeg", ".jpg", ".gif", ".bmp", ".png"};
+
+    /** The index everyone shares */
+    private static ImageIndex shared;
+
+    /** The directory we index */
+    private final Path directory;
+
+    /** The images we know about, by file name, in name order */
+    private final TreeMap<String, ImageInfo> images = new TreeMap<>();
+
+    /** Told about every image when it is first seen and again whenever it changes */
+    private final List<Consumer<ImageInfo>> listeners = new CopyOnWriteArrayList<>();
+
+    /** The getFileList response: every image path separated by | */
+    private volatile byte[] listBody;
+
+    /** The getFileList?format=json response: every image with its size */
+    private volatile byte[] jsonBody;
+
+    /**
+     * Create an index of a directory. Call start() to fill it and keep it current.
+     *
+     * @param directory The directory to index
+     */
+    public ImageIndex(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Get the index of the directory we serve from, building it the first time
+     *
+     * @return The shared index
+     */
+    public static synchronized ImageIndex shared() {
+        if (shared == null) {
+            shared = new ImageIndex(Paths.get("."));
+            shared.start();
+        }
+        return shared;
+    }
+
+    /**
+     * Scan the directory and start watching it for changes
+     */
+    public void start() {
+        rescan();
+
+        try {
+            WatchService watchService = FileSystems.getDefault().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+            Thread watcher = new Thread(() -> watch(watchService), "ichabod-image-index");
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (IOException ex) {
+            //We still have the first scan, it just won't update
+            Logger.getLogger(ImageIndex.class.getName()).log(Level.WARNING, "Can't watch " + directory, ex);
+        }
+    }
+
+    /**
+     * Hear about every image we know of now, and about each one again
+     * whenever it is added or changes. The listener runs on the thread that
+     * noticed, so it should hand anything slow off to its own.
+     *
+     * @param listener What to tell
+     */
+    public void addListener(Consumer<ImageInfo> listener) {
+        listeners.add(listener);
+        List<ImageInfo> current;
+        synchronized (this) {
+            current = new ArrayList<>(images.values());
+        }
+        current.forEach(listener);
+    }
+
+    /**
+     * Tell the listeners about images that are new or changed
+     *
+     * @param changed The images
+     */
+    private void notifyListeners(Collection<ImageInfo> changed) {
+        for (Consumer<ImageInfo> listener : listeners) {
+            changed.forEach(listener);
+        }
+    }
+
+    /**
+     * @return The getFileList response body
+     */
+    public byte[] getListBody() {
+        return listBody;
+    }
+
+    /**
+     * @return The getFileList?format=json response body
+     */
+    public byte[] getJsonBody() {
+        return jsonBody;
+    }
+
+    /**
+     * Look up an image we know about
+     *
+     * @param name The file name, e.g., Italy.jpg
+     * @return What we know about the image, or null if it isn't in the index
+     */
+    public synchronized ImageInfo get(String name) {
+        return images.get(name);
+    }
+
+    /**
+     * Determines if the path belongs to a file with an image file extension
+     * @param path The path to check
+     * @return True if it has an image fie extension, false otherwise
+     */
+    public static boolean isImagePath(Path path) {
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (path.toString().endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decide if a file belongs in the index
+     *
+     * @param path The file
+     * @return True if it's an image and not one of our temp files
+     */
+    private static boolean isIndexed(Path path) {
+        //Ignore temp files
+        return isImagePath(path) && !path.getFileName().toString().contains("0.");
+    }
+
+    /**
+     * Throw away what we know and read the whole directory again
+     */
+    private void rescan() {
+        TreeMap<String, ImageInfo> found = new TreeMap<>();
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)) {
+            for (Path path : directoryStream) {
+                if (isIndexed(path) && Files.isRegularFile(path)) {
+                    found.put(path.getFileName().toString(), readInfo(path));
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ImageIndex.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        synchronized (this) {
+            images.clear();
+            images.putAll(found);
+            render();
+        }
+        notifyListeners(found.values());
+    }
+
+    /**
+     * Wait for changes to the directory and apply them to the index
+     *
+     * @param watchService The watch service the directory is registered with
+     */
+    private void watch(WatchService watchService) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+
+            boolean overflow = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    overflow = true; //We missed events, so only a full scan will do
+                    continue;
+                }
+                Path name = (Path) event.context();
+                if (isIndexed(name)) {
+                    update(name);
+                }
+            }
+            if (overflow) {
+                rescan();
+            }
+
+            if (!key.reset()) {
+                Logger.getLogger(ImageIndex.class.getName()).log(Level.WARNING, "Stopped watching " + directory);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Bring one file's entry up to date after it was created, changed or deleted
+     *
+     * @param name The file's name within the directory
+     */
+    private void update(Path name) {
+        Path path = directory.resolve(name);
+        ImageInfo info = Files.isRegularFile(path) ? readInfo(path) : null;
+
+        synchronized (this) {
+            if (info == null) {
+                images.remove(name.toString());
+            } else {
+                images.put(name.toString(), info);
+            }
+            render();
+        }
+        if (info != null) {
+            notifyListeners(Collections.singletonList(info));
+        }
+    }
+
+    /**
+     * Read an image's size from its header without decoding it
+     *
+     * @param path The image
+     * @return What we know about it. The size is 0x0 if we couldn't read it.
+     */
+    private static ImageInfo readInfo(Path path) {
+        int width = 0;
+        int height = 0;
+        long lastModified = 0;
+
+        try (ImageInputStream input = ImageIO.createImageInputStream(path.toFile())) {
+            lastModified = Files.getLastModifiedTime(path).toMillis();
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers != null && readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(input, true, true);
+                    width = reader.getWidth(0);
+                    height = reader.getHeight(0);
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } catch (IOException ex) {
+            //Probably still being written. We'll hear about it again when it's done.
+        }
+
+        return new ImageInfo(path, width, height, lastModified);
+    }
+
+    /**
+     * Render the responses from the current entries. Must hold the lock.
+     */
+    private void render() {
+        StringBuilder list = new StringBuilder();
+        StringBuilder json = new StringBuilder("[");
+
+        for (Map.Entry<String, ImageInfo> entry : images.entrySet()) {
+            String name = "/" + entry.getKey();
+            ImageInfo info = entry.getValue();
+
+            //Put the list into one string separated by |
+            list.append('|').append(name);
+
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append("{\"name\":\"").append(name.replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append("\",\"width\":").append(info.getWidth())
+                    .append(",\"height\":").append(info.getHeight()).append('}');
+        }
+        json.append(']');
+
+        listBody = list.toString().getBytes(StandardCharsets.UTF_8);
+        jsonBody = json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * What we know about one image
+     */
+    public static class ImageInfo {
+
+        /** Where the image is */
+        private final Path path;
+
+        /** The width in pixels, or 0 if unknown */
+        private final int width;
+
+        /** The height in pixels, or 0 if unknown */
+        private final int height;
+
+        /** When the file was last modified, in milliseconds */
+        private final long lastModified;
+
+        ImageInfo(Path path, int width, int height, long lastModified) {
+            this.path = path;
+            this.width = width;
+            this.height = height;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return Where the image is
+         */
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * @return The width in pixels, or 0 if unknown
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * @return The height in pixels, or 0 if unknown
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * @return When the file was last modified, in milliseconds
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+}
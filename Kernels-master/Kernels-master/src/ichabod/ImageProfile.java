@@ -0,0 +1,154 @@
+package ichabod;
+
+/**
+ * The numbers behind an image, gathered in one pass over its pixels: how many
+ * pixels have each value of red, green and blue, and the summed brightness of
+ * every row and every column.
+ *
+ * Each band of rows keeps its own column sums and histograms while it runs
+ * and adds them to the totals when it is done, so the bands never share
+ * anything but that one merge.
+ */
+class ImageProfile {
+
+    /** The image's width */
+    private final int width;
+
+    /** The image's height */
+    private final int height;
+
+    /** How many pixels have each red value */
+    private final int[] red = new int[256];
+
+    /** How many pixels have each green value */
+    private final int[] green = new int[256];
+
+    /** How many pixels have each blue value */
+    private final int[] blue = new int[256];
+
+    /** The summed brightness of each row */
+    private final int[] rows;
+
+    /** The summed brightness of each column */
+    private final int[] columns;
+
+    /**
+     * Profile an image
+     *
+     * @param pixels The packed pixels, row by row
+     * @param width The image's width
+     * @param height The image's height
+     * @param bands Splits the pass across cores
+     */
+    ImageProfile(int[] pixels, int width, int height, RowBands bands) {
+        this.width = width;
+        this.height = height;
+        rows = new int[height];
+        columns = new int[width];
+
+        bands.forEachRow(width, height, (start, end) -> {
+            int[] bandColumns = new int[width];
+            int[] bandRed = new int[256];
+            int[] bandGreen = new int[256];
+            int[] bandBlue = new int[256];
+
+            for (int y = start; y < end; y++) {
+                int sum = 0;
+                for (int x = 0, i = y * width; x < width; x++, i++) {
+                    int pixel = pixels[i];
+                    int r = Pixels.red(pixel);
+                    int g = Pixels.green(pixel);
+                    int b = Pixels.blue(pixel);
+                    int brightness = brightness(r, g, b);
+
+                    sum += brightness;
+                    bandColumns[x] += brightness;
+                    bandRed[r]++;
+                    bandGreen[g]++;
+                    bandBlue[b]++;
+                }
+                //Only this band writes this row
+                rows[y] = sum;
+            }
+
+            merge(bandColumns, bandRed, bandGreen, bandBlue);
+        });
+    }
+
+    /**
+     * Add one band's column sums and histograms to the totals
+     *
+     * @param bandColumns The band's column sums
+     * @param bandRed The band's red histogram
+     * @param bandGreen The band's green histogram
+     * @param bandBlue The band's blue histogram
+     */
+    private synchronized void merge(int[] bandColumns, int[] bandRed, int[] bandGreen, int[] bandBlue) {
+        for (int x = 0; x < width; x++) {
+            columns[x] += bandColumns[x];
+        }
+        for (int v = 0; v < 256; v++) {
+            red[v] += bandRed[v];
+            green[v] += bandGreen[v];
+            blue[v] += bandBlue[v];
+        }
+    }
+
+    /**
+     * @param r Red from 0 to 255
+     * @param g Green from 0 to 255
+     * @param b Blue from 0 to 255
+     * @return The brightness the histograms command has always drawn, from 0 to 255
+     */
+    static int brightness(int r, int g, int b) {
+        return (int) (r * .3 + g * .4 + b * .3);
+    }
+
+    /**
+     * @return The summed brightness of each row; the array is ours, so don't change it
+     */
+    int[] getRows() {
+        return rows;
+    }
+
+    /**
+     * @return The summed brightness of each column; the array is ours, so don't change it
+     */
+    int[] getColumns() {
+        return columns;
+    }
+
+    /**
+     * Write the profile as compact JSON
+     *
+     * @return {"width":..,"height":..,"red":[256],"green":[256],"blue":[256],"rows":[height],"columns":[width]}
+     */
+    String toJson() {
+        StringBuilder json = new StringBuilder(8 * (768 + width + height));
+        json.append("{\"width\":").append(width).append(",\"height\":").append(height);
+        append(json, "red", red);
+        append(json, "green", green);
+        append(json, "blue", blue);
+        append(json, "rows", rows);
+        append(json, "columns", columns);
+        return json.append('}').toString();
+    }
+
+    /**
+     * Add a named array to a JSON object
+     *
+     * @param json The object so far, after at least one member
+     * @param name The member's name
+     * @param values The numbers
+     */
+    private static void append(StringBuilder json, String name, int[] values) {
+        json.append(",\"").append(name).append("\":[");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(values[i]);
+        }
+        json.append(']');
+    }
+}
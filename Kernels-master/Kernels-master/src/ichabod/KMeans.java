@@ -0,0 +1,338 @@
+package ichabod;
+
+import java.util.Random;
+
+/**
+ * Picks a palette for an image by k-means over its distinct colors, each
+ * weighted by how often it appears. Distances are L1 (|dr| + |dg| + |db|).
+ *
+ * The starting centers are chosen by k-means++ from a seeded random number
+ * generator, so the same image and seed always give the same palette.
+ *
+ * Each round uses Hamerly's bounds: every color remembers an upper bound on
+ * the distance to its center and a lower bound on the distance to any other
+ * center. When the centers move, the bounds are loosened by how far they
+ * moved, and a color is only measured again if the bounds say it might have
+ * changed sides. Once nothing changes sides, we stop.
+ */
+class KMeans {
+
+    /** The colors being clustered, by histogram index */
+    private final int[] red;
+    private final int[] green;
+    private final int[] blue;
+
+    /** How many pixels each color stands for */
+    private final int[] weight;
+
+    /** The centers */
+    private final int[] centerRed;
+    private final int[] centerGreen;
+    private final int[] centerBlue;
+
+    /** Which center each color belongs to */
+    private final int[] assignment;
+
+    /** No more than the distance from each color to its center */
+    private final int[] upper;
+
+    /** No more than the distance from each color to any other center */
+    private final int[] lower;
+
+    /** How many rounds we ran */
+    private int rounds;
+
+    /**
+     * Cluster the colors in a histogram
+     *
+     * @param histogram The colors and their counts
+     * @param maxColors The most centers to make; fewer if there aren't that many colors
+     * @param seed Seeds the choice of starting centers
+     * @param maxRounds The most rounds to run if it doesn't settle first
+     */
+    KMeans(ColorHistogram histogram, int maxColors, long seed, int maxRounds) {
+        int n = histogram.size();
+        red = new int[n];
+        green = new int[n];
+        blue = new int[n];
+        weight = new int[n];
+        for (int i = 0; i < n; i++) {
+            int rgb = histogram.color(i);
+            red[i] = Pixels.red(rgb);
+            green[i] = Pixels.green(rgb);
+            blue[i] = Pixels.blue(rgb);
+            weight[i] = histogram.count(i);
+        }
+
+        int k = Math.min(maxColors, n);
+        centerRed = new int[k];
+        centerGreen = new int[k];
+        centerBlue = new int[k];
+        assignment = new int[n];
+        upper = new int[n];
+        lower = new int[n];
+
+        seed(new Random(seed));
+        assignAll();
+
+        for (int round = 1; round <= maxRounds; round++) {
+            rounds = round;
+            if (!update()) {
+                break; //The centers didn't move
+            }
+            if (reassign() == 0) {
+                break; //Nobody changed sides, so the centers won't move again
+            }
+        }
+    }
+
+    /**
+     * Pick starting centers with k-means++: each new center is a color picked
+     * with odds proportional to its weight times its squared distance to the
+     * nearest center so far
+     *
+     * @param random The random number generator
+     */
+    private void seed(Random random) {
+        int n = red.length;
+        int k = centerRed.length;
+        if (k == 0) {
+            return;
+        }
+
+        //The first is picked by weight alone
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            total += weight[i];
+        }
+        long target = (long) (random.nextDouble() * total);
+        int first = 0;
+        long sum = weight[0];
+        while (sum <= target && first < n - 1) {
+            first++;
+            sum += weight[first];
+        }
+        setCenter(0, first);
+
+        long[] nearest = new long[n];
+        for (int i = 0; i < n; i++) {
+            nearest[i] = Long.MAX_VALUE;
+        }
+
+        for (int c = 1; c < k; c++) {
+            double odds = 0;
+            for (int i = 0; i < n; i++) {
+                long d = distance(i, c - 1);
+                nearest[i] = Math.min(nearest[i], d * d);
+                odds += (double) weight[i] * nearest[i];
+            }
+
+            double pick = random.nextDouble() * odds;
+            int chosen = -1;
+            for (int i = 0; i < n; i++) {
+                if (nearest[i] == 0) {
+                    continue; //Already a center
+                }
+                chosen = i;
+                pick -= (double) weight[i] * nearest[i];
+                if (pick < 0) {
+                    break;
+                }
+            }
+            setCenter(c, chosen);
+        }
+    }
+
+    /**
+     * Put a center on a color
+     *
+     * @param c The center
+     * @param i The color
+     */
+    private void setCenter(int c, int i) {
+        centerRed[c] = red[i];
+        centerGreen[c] = green[i];
+        centerBlue[c] = blue[i];
+    }
+
+    /**
+     * @param i A color
+     * @param c A center
+     * @return The L1 distance between them
+     */
+    private int distance(int i, int c) {
+        return Math.abs(red[i] - centerRed[c]) + Math.abs(green[i] - centerGreen[c]) + Math.abs(blue[i] - centerBlue[c]);
+    }
+
+    /**
+     * Measure every color against every center, setting its assignment and bounds
+     */
+    private void assignAll() {
+        for (int i = 0; i < red.length; i++) {
+            assignOne(i);
+        }
+    }
+
+    /**
+     * Measure one color against every center. Ties go to the first center.
+     *
+     * @param i The color
+     * @return True if it changed sides
+     */
+    private boolean assignOne(int i) {
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        int second = Integer.MAX_VALUE;
+        for (int c = 0; c < centerRed.length; c++) {
+            int d = distance(i, c);
+            if (d < bestDistance) {
+                second = bestDistance;
+                bestDistance = d;
+                best = c;
+            } else if (d < second) {
+                second = d;
+            }
+        }
+        boolean changed = assignment[i] != best;
+        assignment[i] = best;
+        upper[i] = bestDistance;
+        lower[i] = second;
+        return changed;
+    }
+
+    /**
+     * Move every center to the weighted mean of its colors, and loosen the
+     * bounds by how far the centers moved
+     *
+     * @return True if any center moved
+     */
+    private boolean update() {
+        int k = centerRed.length;
+        long[] sumRed = new long[k];
+        long[] sumGreen = new long[k];
+        long[] sumBlue = new long[k];
+        long[] count = new long[k];
+        for (int i = 0; i < red.length; i++) {
+            int c = assignment[i];
+            sumRed[c] += (long) red[i] * weight[i];
+            sumGreen[c] += (long) green[i] * weight[i];
+            sumBlue[c] += (long) blue[i] * weight[i];
+            count[c] += weight[i];
+        }
+
+        int[] moved = new int[k];
+        boolean reseeded = false;
+        for (int c = 0; c < k; c++) {
+            int r, g, b;
+            if (count[c] > 0) {
+                r = (int) (sumRed[c] / count[c]);
+                g = (int) (sumGreen[c] / count[c]);
+                b = (int) (sumBlue[c] / count[c]);
+            } else {
+                //An empty center takes over the color that is furthest from its own
+                int worst = 0;
+                for (int i = 1; i < red.length; i++) {
+                    if ((long) upper[i] * weight[i] > (long) upper[worst] * weight[worst]) {
+                        worst = i;
+                    }
+                }
+                r = red[worst];
+                g = green[worst];
+                b = blue[worst];
+                reseeded = true;
+            }
+            moved[c] = Math.abs(r - centerRed[c]) + Math.abs(g - centerGreen[c]) + Math.abs(b - centerBlue[c]);
+            centerRed[c] = r;
+            centerGreen[c] = g;
+            centerBlue[c] = b;
+        }
+
+        if (reseeded) {
+            //The bounds don't hold for a center that jumped, so start them again
+            assignAll();
+            return true;
+        }
+
+        //The furthest any center moved, and the furthest any other than that one moved
+        int most = -1;
+        int mostMoved = 0;
+        int nextMoved = 0;
+        for (int c = 0; c < k; c++) {
+            if (moved[c] > mostMoved) {
+                nextMoved = mostMoved;
+                mostMoved = moved[c];
+                most = c;
+            } else if (moved[c] > nextMoved) {
+                nextMoved = moved[c];
+            }
+        }
+        if (mostMoved == 0) {
+            return false;
+        }
+
+        for (int i = 0; i < red.length; i++) {
+            int c = assignment[i];
+            upper[i] += moved[c];
+            lower[i] -= c == most ? nextMoved : mostMoved;
+        }
+        return true;
+    }
+
+    /**
+     * Move colors to their nearest center, skipping the ones whose bounds
+     * prove they can't have changed sides
+     *
+     * @return How many colors changed sides
+     */
+    private int reassign() {
+        int k = centerRed.length;
+
+        //How far each center is from its nearest neighbor
+        int[] gap = new int[k];
+        for (int c = 0; c < k; c++) {
+            gap[c] = Integer.MAX_VALUE;
+            for (int other = 0; other < k; other++) {
+                if (other != c) {
+                    int d = Math.abs(centerRed[c] - centerRed[other]) + Math.abs(centerGreen[c] - centerGreen[other])
+                            + Math.abs(centerBlue[c] - centerBlue[other]);
+                    gap[c] = Math.min(gap[c], d);
+                }
+            }
+        }
+
+        int changed = 0;
+        for (int i = 0; i < red.length; i++) {
+            int c = assignment[i];
+            //Closer than halfway to the nearest other center, or closer than any other center could be
+            if ((long) upper[i] * 2 <= gap[c] || upper[i] <= lower[i]) {
+                continue;
+            }
+            upper[i] = distance(i, c);
+            if ((long) upper[i] * 2 <= gap[c] || upper[i] <= lower[i]) {
+                continue;
+            }
+            if (assignOne(i)) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return The centers as packed opaque pixels
+     */
+    int[] palette() {
+        int[] palette = new int[centerRed.length];
+        for (int c = 0; c < palette.length; c++) {
+            palette[c] = Pixels.opaque(centerRed[c], centerGreen[c], centerBlue[c]);
+        }
+        return palette;
+    }
+
+    /**
+     * @return How many rounds ran before it settled or gave up
+     */
+    int getRounds() {
+        return rounds;
+    }
+}
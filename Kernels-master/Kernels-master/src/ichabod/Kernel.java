@@ -0,0 +1,250 @@
+package ichabod;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A convolution kernel: an odd-sized grid of weights centered on the pixel
+ * being computed. A kernel knows whether it can be run more cheaply, either
+ * as a box (every weight the same) or as two 1-D passes (separable).
+ */
+public class Kernel {
+
+    /** The kernels fromArguments knows, by name */
+    public static final String[] NAMES = {"box", "gaussian", "disk", "identity", "laplacian", "sharpen"};
+
+    /** The biggest radius we accept from a request */
+    public static final int MAX_RADIUS = 128;
+
+    /** How far weights may be from an exact separation and still count as separable */
+    private static final float TOLERANCE = 1e-6f;
+
+    /** How many columns of weights there are */
+    private final int width;
+
+    /** How many rows of weights there are */
+    private final int height;
+
+    /** The weights, row by row */
+    private final float[] weights;
+
+    /**
+     * Create a kernel
+     *
+     * @param width How many columns of weights there are, which must be odd
+     * @param height How many rows of weights there are, which must be odd
+     * @param weights The weights, row by row
+     */
+    public Kernel(int width, int height, float[] weights) {
+        if (width % 2 == 0 || height % 2 == 0 || width < 1 || height < 1 || weights.length != width * height) {
+            throw new IllegalArgumentException("A kernel must be an odd size with one weight per cell");
+        }
+        this.width = width;
+        this.height = height;
+        this.weights = weights.clone();
+    }
+
+    /**
+     * Pick a kernel from a request's arguments: kernel is box (the default),
+     * gaussian, disk, identity, laplacian or sharpen, and radius defaults to 2
+     *
+     * @param arguments The request's arguments
+     * @return The kernel
+     * @throws IllegalArgumentException If the kernel or radius is no good
+     */
+    public static Kernel fromArguments(Map<String, String> arguments) {
+        int radius = 2;
+        if (arguments.containsKey("radius")) {
+            radius = Integer.parseInt(arguments.get("radius"));
+        }
+        if (radius < 0 || radius > MAX_RADIUS) {
+            throw new IllegalArgumentException("radius must be between 0 and " + MAX_RADIUS);
+        }
+
+        String name = arguments.containsKey("kernel") ? arguments.get("kernel") : "box";
+        switch (name) {
+            case "box":
+                return box(radius);
+            case "gaussian":
+                return gaussian(radius);
+            case "identity":
+                return identity(radius);
+            case "disk":
+                return disk(radius);
+            case "laplacian":
+                return laplacian();
+            case "sharpen":
+                return sharpen();
+            default:
+                throw new IllegalArgumentException("Unknown kernel " + name);
+        }
+    }
+
+    /**
+     * @param radius How far the kernel reaches from the center
+     * @return A kernel that averages a square of pixels
+     */
+    public static Kernel box(int radius) {
+        int size = radius * 2 + 1;
+        float[] weights = new float[size * size];
+        Arrays.fill(weights, 1.0f / (size * size));
+        return new Kernel(size, size, weights);
+    }
+
+    /**
+     * @param radius How far the kernel reaches from the center
+     * @return A kernel that leaves the image as it is
+     */
+    public static Kernel identity(int radius) {
+        int size = radius * 2 + 1;
+        float[] weights = new float[size * size];
+        weights[size * size / 2] = 1;
+        return new Kernel(size, size, weights);
+    }
+
+    /**
+     * @param radius How far the kernel reaches from the center, which is three standard deviations
+     * @return A normalized gaussian blur
+     */
+    public static Kernel gaussian(int radius) {
+        int size = radius * 2 + 1;
+        double sigma = Math.max(radius / 3.0, 0.5);
+
+        double[] line = new double[size];
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            line[i] = Math.exp(-(i - radius) * (i - radius) / (2 * sigma * sigma));
+            sum += line[i];
+        }
+
+        float[] weights = new float[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                weights[y * size + x] = (float) (line[x] * line[y] / (sum * sum));
+            }
+        }
+        return new Kernel(size, size, weights);
+    }
+
+    /**
+     * @param radius The radius of the disk
+     * @return A kernel that averages a circle of pixels, like an out of focus lens. It doesn't separate.
+     */
+    public static Kernel disk(int radius) {
+        int size = radius * 2 + 1;
+        float[] weights = new float[size * size];
+        int count = 0;
+        for (int y = -radius; y <= radius; y++) {
+            for (int x = -radius; x <= radius; x++) {
+                if (x * x + y * y <= radius * radius) {
+                    count++;
+                }
+            }
+        }
+        for (int y = -radius; y <= radius; y++) {
+            for (int x = -radius; x <= radius; x++) {
+                if (x * x + y * y <= radius * radius) {
+                    weights[(y + radius) * size + x + radius] = 1.0f / count;
+                }
+            }
+        }
+        return new Kernel(size, size, weights);
+    }
+
+    /**
+     * @return A 3x3 kernel that keeps only the edges
+     */
+    public static Kernel laplacian() {
+        return new Kernel(3, 3, new float[]{
+            -1, -1, -1,
+            -1, 8, -1,
+            -1, -1, -1});
+    }
+
+    /**
+     * @return A 3x3 kernel that makes the edges stand out
+     */
+    public static Kernel sharpen() {
+        return new Kernel(3, 3, new float[]{
+            0, -1, 0,
+            -1, 5, -1,
+            0, -1, 0});
+    }
+
+    /**
+     * @return How many columns of weights there are
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return How many rows of weights there are
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param x The column, from 0
+     * @param y The row, from 0
+     * @return The weight there
+     */
+    public float get(int x, int y) {
+        return weights[y * width + x];
+    }
+
+    /**
+     * @return True if every weight is the same, so a running sum can do the work
+     */
+    public boolean isBox() {
+        for (float weight : weights) {
+            if (weight != weights[0]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Try to split the kernel into a row and a column whose product is the
+     * kernel, so it can be run as a horizontal pass and then a vertical one
+     *
+     * @return The horizontal weights and the vertical weights, or null if the kernel doesn't separate
+     */
+    public float[][] separate() {
+        //Use the biggest weight as the pivot so we don't divide by anything tiny
+        int pivot = 0;
+        for (int i = 1; i < weights.length; i++) {
+            if (Math.abs(weights[i]) > Math.abs(weights[pivot])) {
+                pivot = i;
+            }
+        }
+        float scale = weights[pivot];
+        if (scale == 0) {
+            return null;
+        }
+        int pivotX = pivot % width;
+        int pivotY = pivot / width;
+
+        float[] horizontal = new float[width];
+        float[] vertical = new float[height];
+        for (int x = 0; x < width; x++) {
+            horizontal[x] = weights[pivotY * width + x] / scale;
+        }
+        for (int y = 0; y < height; y++) {
+            vertical[y] = weights[y * width + pivotX];
+        }
+
+        //It only separates if every weight is its row's share times its column's share
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float expected = horizontal[x] * vertical[y];
+                if (Math.abs(weights[y * width + x] - expected) > TOLERANCE * Math.max(1, Math.abs(scale))) {
+                    return null;
+                }
+            }
+        }
+        return new float[][]{horizontal, vertical};
+    }
+}
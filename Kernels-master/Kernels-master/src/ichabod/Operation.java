@@ -0,0 +1,480 @@
+package ichabod;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A command the processor can run, and what it takes to run it: what kind of
+ * operation it is, the size of what it makes, the arguments it reads and
+ * roughly how long it takes per pixel. Requests are checked against this
+ * before anything is decoded, and the server uses the cost to tell heavy work
+ * from light.
+ */
+public class Operation {
+
+    /** How an operation reads the image, which decides what it can be fused with */
+    public enum Kind {
+        /** Each output pixel depends only on the input pixel in the same place */
+        POINT,
+        /** Each output pixel is an input pixel moved somewhere else */
+        GEOMETRIC,
+        /** Output pixels depend on where they are or on the pixels around them */
+        NEIGHBORHOOD,
+        /** Output pixels can depend on anything in the image */
+        GLOBAL
+    }
+
+    /** The size of what an operation makes from a width x height image */
+    public enum Shape {
+        /** The same size */
+        SAME,
+        /** height x width */
+        TRANSPOSED,
+        /** 20 pixels wider and taller, for the margins histograms draws */
+        MARGINS,
+        /** Not an image at all, but JSON */
+        DATA;
+
+        /**
+         * @param width The input's width
+         * @param height The input's height
+         * @return The output's width, or 0 for DATA
+         */
+        public int width(int width, int height) {
+            switch (this) {
+                case TRANSPOSED:
+                    return height;
+                case MARGINS:
+                    return width + 20;
+                case DATA:
+                    return 0;
+                default:
+                    return width;
+            }
+        }
+
+        /**
+         * @param width The input's width
+         * @param height The input's height
+         * @return The output's height, or 0 for DATA
+         */
+        public int height(int width, int height) {
+            switch (this) {
+                case TRANSPOSED:
+                    return width;
+                case MARGINS:
+                    return height + 20;
+                case DATA:
+                    return 0;
+                default:
+                    return height;
+            }
+        }
+    }
+
+    /** Runs an operation that makes an image */
+    public interface Body {
+
+        /**
+         * @param in The image to run on, which is only read
+         * @param out An image the same size as in, for operations that write into one
+         * @param arguments The request's arguments
+         * @return The result: out, a new image, or in if there was nothing to do
+         * @throws IOException If it reads a file that can't be read
+         */
+        BufferedImage run(BufferedImage in, BufferedImage out, HashMap<String, String> arguments) throws IOException;
+    }
+
+    /** Works out what an operation costs from the arguments a request gives it */
+    public interface Cost {
+
+        /**
+         * @param arguments The request's arguments, already validated
+         * @param width The input's width
+         * @param height The input's height
+         * @return About how many nanoseconds it takes per input pixel on one core
+         */
+        double nanosPerPixel(Map<String, String> arguments, int width, int height);
+    }
+
+    /** Runs an operation that answers with numbers */
+    public interface Data {
+
+        /**
+         * @param in The image to run on, which is only read
+         * @param arguments The request's arguments
+         * @return The answer as JSON
+         */
+        String run(BufferedImage in, HashMap<String, String> arguments);
+    }
+
+    /** The name requests use */
+    private final String name;
+
+    /** One line on what it does */
+    private final String description;
+
+    /** How it reads the image */
+    private final Kind kind;
+
+    /** The size of what it makes */
+    private final Shape shape;
+
+    /** About how many nanoseconds it takes per input pixel on one core, with the default arguments */
+    private final double nanosPerPixel;
+
+    /** Works out the cost for other arguments, or null if they don't change it */
+    private final Cost cost;
+
+    /** Makes the image, or null for a data operation */
+    private final Body body;
+
+    /** Makes the JSON, or null for an image operation */
+    private final Data data;
+
+    /** The same thing as an op that can be fused, or null if it isn't a point operation */
+    private final PointOp pointOp;
+
+    /** The arguments it reads */
+    private final List<Parameter> parameters;
+
+    /**
+     * @param name The name requests use
+     * @param description One line on what it does
+     * @param kind How it reads the image
+     * @param shape The size of what it makes
+     * @param nanosPerPixel About how many nanoseconds it takes per input pixel on one core
+     * @param cost Works out the cost for other arguments, or null
+     * @param body Makes the image, or null for a data operation
+     * @param data Makes the JSON, or null for an image operation
+     * @param pointOp The same thing as an op that can be fused, or null
+     * @param parameters The arguments it reads
+     */
+    private Operation(String name, String description, Kind kind, Shape shape, double nanosPerPixel, Cost cost, Body body, Data data,
+            PointOp pointOp, Parameter[] parameters) {
+        this.name = name;
+        this.description = description;
+        this.kind = kind;
+        this.shape = shape;
+        this.nanosPerPixel = nanosPerPixel;
+        this.cost = cost;
+        this.body = body;
+        this.data = data;
+        this.pointOp = pointOp;
+        this.parameters = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(parameters)));
+    }
+
+    /**
+     * Describe an operation that makes an image
+     *
+     * @param name The name requests use
+     * @param description One line on what it does
+     * @param kind How it reads the image; use point() for POINT
+     * @param shape The size of what it makes
+     * @param nanosPerPixel About how many nanoseconds it takes per input pixel on one core
+     * @param body Makes the image
+     * @param parameters The arguments it reads
+     */
+    public Operation(String name, String description, Kind kind, Shape shape, double nanosPerPixel, Body body, Parameter... parameters) {
+        this(name, description, kind, shape, nanosPerPixel, null, body, null, null, parameters);
+        if (kind == Kind.POINT) {
+            throw new IllegalArgumentException("Point operations need an op to fuse; use point()");
+        }
+    }
+
+    /**
+     * Describe a point operation, which pipelines can fuse with its neighbors
+     *
+     * @param name The name requests use
+     * @param description One line on what it does
+     * @param nanosPerPixel About how many nanoseconds it takes per pixel on one core when run alone
+     * @param pointOp The same thing as an op that can be fused
+     * @param body Makes the image when it runs alone
+     * @return The operation
+     */
+    static Operation point(String name, String description, double nanosPerPixel, PointOp pointOp, Body body) {
+        return new Operation(name, description, Kind.POINT, Shape.SAME, nanosPerPixel, null, body, null, pointOp, new Parameter[0]);
+    }
+
+    /**
+     * Describe an operation that answers with JSON instead of an image. It
+     * can only come last in a pipeline.
+     *
+     * @param name The name requests use
+     * @param description One line on what it does
+     * @param nanosPerPixel About how many nanoseconds it takes per pixel on one core
+     * @param data Makes the JSON
+     * @param parameters The arguments it reads
+     * @return The operation
+     */
+    public static Operation data(String name, String description, double nanosPerPixel, Data data, Parameter... parameters) {
+        return new Operation(name, description, Kind.GLOBAL, Shape.DATA, nanosPerPixel, null, null, data, null, parameters);
+    }
+
+    /**
+     * The same operation, but with a cost that depends on the arguments, for
+     * operations where they make orders of magnitude of difference
+     *
+     * @param cost Works out the cost; it should agree with nanosPerPixel for the default arguments
+     * @return The operation
+     */
+    public Operation costing(Cost cost) {
+        return new Operation(name, description, kind, shape, nanosPerPixel, cost, body, data, pointOp,
+                parameters.toArray(new Parameter[0]));
+    }
+
+    /**
+     * Check a request's arguments before any work is done
+     *
+     * @param arguments The request's arguments; ones we don't read are ignored
+     * @throws IllegalArgumentException If one we read is no good
+     */
+    public void validate(Map<String, String> arguments) {
+        for (Parameter parameter : parameters) {
+            String value = arguments.get(parameter.getName());
+            if (value != null) {
+                parameter.check(value);
+            }
+        }
+    }
+
+    /**
+     * @return The name requests use
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return How it reads the image
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return The size of what it makes
+     */
+    public Shape getShape() {
+        return shape;
+    }
+
+    /**
+     * @return About how many nanoseconds it takes per input pixel on one core, with the default arguments
+     */
+    public double getNanosPerPixel() {
+        return nanosPerPixel;
+    }
+
+    /**
+     * @param arguments The request's arguments, already validated
+     * @param width The input's width
+     * @param height The input's height
+     * @return About how many nanoseconds it takes per input pixel on one core with these arguments
+     */
+    public double getNanosPerPixel(Map<String, String> arguments, int width, int height) {
+        return cost == null ? nanosPerPixel : cost.nanosPerPixel(arguments, width, height);
+    }
+
+    /**
+     * @return True if it answers with JSON rather than an image
+     */
+    public boolean isData() {
+        return data != null;
+    }
+
+    /**
+     * @return Makes the image, or null for a data operation
+     */
+    public Body getBody() {
+        return body;
+    }
+
+    /**
+     * @return Makes the JSON, or null for an image operation
+     */
+    public Data getData() {
+        return data;
+    }
+
+    /**
+     * @return The same thing as an op that can be fused, or null if it isn't a point operation
+     */
+    PointOp getPointOp() {
+        return pointOp;
+    }
+
+    /**
+     * @return The arguments it reads
+     */
+    public List<Parameter> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return Everything about the operation as a JSON object
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"name\":\"").append(name).append("\",\"description\":\"").append(description)
+                .append("\",\"kind\":\"").append(kind.name().toLowerCase())
+                .append("\",\"shape\":\"").append(shape.name().toLowerCase())
+                .append("\",\"nanosPerPixel\":").append(nanosPerPixel)
+                .append(",\"parameters\":[");
+        for (int i = 0; i < parameters.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(parameters.get(i).toJson());
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * An argument an operation reads, and what values it takes
+     */
+    public static class Parameter {
+
+        /** The argument's name */
+        private final String name;
+
+        /** One line on what it does */
+        private final String description;
+
+        /** integer, choice, boolean or image */
+        private final String type;
+
+        /** What it is when the request doesn't give it */
+        private final String defaultValue;
+
+        /** The smallest and largest it can be, for integers */
+        private final long min;
+        private final long max;
+
+        /** What it can be, for choices */
+        private final List<String> choices;
+
+        private Parameter(String name, String description, String type, String defaultValue, long min, long max, List<String> choices) {
+            this.name = name;
+            this.description = description;
+            this.type = type;
+            this.defaultValue = defaultValue;
+            this.min = min;
+            this.max = max;
+            this.choices = choices;
+        }
+
+        /**
+         * @param name The argument's name
+         * @param description One line on what it does
+         * @param min The smallest it can be
+         * @param max The largest it can be
+         * @param defaultValue What it is when the request doesn't give it, or null if it has no fixed default
+         * @return A whole number argument
+         */
+        public static Parameter integer(String name, String description, long min, long max, String defaultValue) {
+            return new Parameter(name, description, "integer", defaultValue, min, max, null);
+        }
+
+        /**
+         * @param name The argument's name
+         * @param description One line on what it does
+         * @param defaultValue What it is when the request doesn't give it
+         * @param choices What it can be
+         * @return An argument that is one of a few words
+         */
+        public static Parameter choice(String name, String description, String defaultValue, String... choices) {
+            return new Parameter(name, description, "choice", defaultValue, 0, 0, Arrays.asList(choices));
+        }
+
+        /**
+         * @param name The argument's name
+         * @param description One line on what it does
+         * @return An argument that is true or false, and false by default
+         */
+        public static Parameter flag(String name, String description) {
+            return new Parameter(name, description, "boolean", "false", 0, 0, Arrays.asList("true", "false"));
+        }
+
+        /**
+         * @param name The argument's name
+         * @param description One line on what it does
+         * @param defaultValue What it is when the request doesn't give it
+         * @return An argument that names one of the images we serve
+         */
+        public static Parameter image(String name, String description, String defaultValue) {
+            return new Parameter(name, description, "image", defaultValue, 0, 0, null);
+        }
+
+        /**
+         * Check a value
+         *
+         * @param value What the request sent
+         * @throws IllegalArgumentException If it isn't one this argument takes
+         */
+        public void check(String value) {
+            if (type.equals("integer")) {
+                long number = Long.parseLong(value);
+                if (number < min || number > max) {
+                    throw new IllegalArgumentException(name + " must be between " + min + " and " + max);
+                }
+            } else if (type.equals("image")) {
+                //Only files the index found in the directory we serve, never a path
+                if (ImageIndex.shared().get(value) == null) {
+                    throw new IllegalArgumentException(name + " must be one of our images");
+                }
+            } else if (!choices.contains(value)) {
+                throw new IllegalArgumentException(name + " must be one of " + choices);
+            }
+        }
+
+        /**
+         * @return The argument's name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return integer, choice, boolean or image
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * @return What it is when the request doesn't give it, or null if it has no fixed default
+         */
+        public String getDefaultValue() {
+            return defaultValue;
+        }
+
+        /**
+         * @return The argument as a JSON object
+         */
+        public String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"name\":\"").append(name).append("\",\"description\":\"").append(description)
+                    .append("\",\"type\":\"").append(type).append('"');
+            if (defaultValue != null) {
+                json.append(",\"default\":\"").append(defaultValue).append('"');
+            }
+            if (type.equals("integer")) {
+                json.append(",\"min\":").append(min).append(",\"max\":").append(max);
+            } else if (choices != null) {
+                json.append(",\"choices\":[");
+                for (int i = 0; i < choices.size(); i++) {
+                    json.append(i > 0 ? ",\"" : "\"").append(choices.get(i)).append('"');
+                }
+                json.append(']');
+            }
+            return json.append('}').toString();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package ichabod;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+
+/**
+ * Keeps the overlay masks commands draw with, one per overlay file. A mask is
+ * built the first time its file is used and again only when the file's
+ * modified time changes, so requests never decode an overlay that hasn't
+ * changed. There are only ever as many full size masks as overlay files.
+ *
+ * Thumbnails need the overlay shrunk by as much as the image was, so those
+ * masks are kept by size as well, up to a fixed number.
+ */
+public class OverlayCache {
+
+    /** How many shrunk masks we keep */
+    private static final int MAX_SCALED = 256;
+
+    /** The newest mask for each overlay file, by absolute path */
+    private final ConcurrentHashMap<String, OverlayMask> masks = new ConcurrentHashMap<>();
+
+    /** Shrunk masks by path, modified time, scale and crop, least recently used first */
+    private final LinkedHashMap<String, OverlayMask> scaled = new LinkedHashMap<String, OverlayMask>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, OverlayMask> eldest) {
+            return size() > MAX_SCALED;
+        }
+    };
+
+    /** Loads that are running right now */
+    private final SingleFlight<String, OverlayMask> loading = new SingleFlight<>();
+
+    /** How many lookups found their mask */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** How many times we decoded an overlay */
+    private final AtomicLong loads = new AtomicLong();
+
+    /**
+     * @param path An overlay file
+     * @return When it was last modified, in milliseconds
+     * @throws IOException If it can't be read
+     */
+    public static long lastModified(Path path) throws IOException {
+        return Files.getLastModifiedTime(path).toMillis();
+    }
+
+    /**
+     * Get the mask for a version of an overlay file, building it if we don't have it
+     *
+     * @param path The overlay file
+     * @param lastModified When it was last modified, from lastModified()
+     * @return The mask, which is shared and never changes
+     * @throws IOException If the file can't be read
+     * @throws IllegalArgumentException If the file isn't an image we can read
+     */
+    OverlayMask get(Path path, long lastModified) throws IOException {
+        String key = path.toAbsolutePath().normalize().toString();
+        OverlayMask mask = masks.get(key);
+        if (mask != null && mask.getLastModified() == lastModified) {
+            hits.incrementAndGet();
+            return mask;
+        }
+
+        return loading.run(key + '|' + lastModified, () -> {
+            OverlayMask loaded = new OverlayMask(read(path), lastModified);
+            //The older version of the file is gone, so its mask can go too
+            masks.put(key, loaded);
+            return loaded;
+        });
+    }
+
+    /**
+     * Get the mask for a version of an overlay file shrunk the way a
+     * thumbnail was, building it if we don't have it
+     *
+     * @param path The overlay file
+     * @param lastModified When it was last modified, from lastModified()
+     * @param scaleX How much the image was shrunk across, at most 1
+     * @param scaleY How much the image was shrunk down, at most 1
+     * @param left How many columns were cropped from the left of the shrunk image
+     * @param top How many rows were cropped from the top of the shrunk image
+     * @param bands Splits the shrinking across cores
+     * @return The mask, which is shared and never changes
+     * @throws IOException If the file can't be read
+     * @throws IllegalArgumentException If the file isn't an image we can read
+     */
+    OverlayMask get(Path path, long lastModified, double scaleX, double scaleY, int left, int top, RowBands bands) throws IOException {
+        String key = path.toAbsolutePath().normalize() + "|" + lastModified + "|" + scaleX + "x" + scaleY + "|" + left + "," + top;
+        synchronized (scaled) {
+            OverlayMask mask = scaled.get(key);
+            if (mask != null) {
+                hits.incrementAndGet();
+                return mask;
+            }
+        }
+
+        return loading.run(key, () -> {
+            BufferedImage overlay = read(path);
+            int width = Math.max(1, (int) Math.round(overlay.getWidth() * scaleX));
+            int height = Math.max(1, (int) Math.round(overlay.getHeight() * scaleY));
+            //Averaging the alpha before the threshold is what shrinking the image did to it
+            BufferedImage shrunk = new Thumbnail(width, height, Thumbnail.Fit.FILL).apply(overlay, overlay.getWidth(), overlay.getHeight(), bands);
+            OverlayMask loaded = new OverlayMask(shrunk, left, top, lastModified);
+            synchronized (scaled) {
+                scaled.put(key, loaded);
+            }
+            return loaded;
+        });
+    }
+
+    /**
+     * Decode an overlay file
+     *
+     * @param path The overlay file
+     * @return It in our layout
+     * @throws IOException If the file can't be read
+     * @throws IllegalArgumentException If the file isn't an image we can read
+     */
+    private BufferedImage read(Path path) throws IOException {
+        loads.incrementAndGet();
+        BufferedImage overlay = ImageIO.read(path.toFile());
+        if (overlay == null) {
+            throw new IllegalArgumentException(path + " isn't an image");
+        }
+        return Pixels.toArgb(overlay);
+    }
+
+    /**
+     * @return The cache's counters as a JSON object
+     */
+    public String statsJson() {
+        int scaledCount;
+        synchronized (scaled) {
+            scaledCount = scaled.size();
+        }
+        return "{\"overlays\":" + masks.size() + ",\"scaled\":" + scaledCount + ",\"hits\":" + hits.get() + ",\"loads\":" + loads.get() + "}";
+    }
+}
@@ -0,0 +1,128 @@
+package ichabod;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Where an overlay image is solid, packed one bit per pixel. It is made once
+ * from the overlay file and never changes, so every request that draws the
+ * overlay can share it; a changed file gets a new mask.
+ */
+class OverlayMask {
+
+    /** Pixels with alpha above this count as solid */
+    static final int SOLID_ALPHA = 20;
+
+    /** What Color.darker() makes of each channel value */
+    private static final int[] DARKER = new int[256];
+
+    static {
+        for (int v = 0; v < 256; v++) {
+            DARKER[v] = (int) (v * 0.7);
+        }
+    }
+
+    /** The overlay's width */
+    private final int width;
+
+    /** The overlay's height */
+    private final int height;
+
+    /** One bit per pixel, row by row, each row starting on a new long */
+    private final long[] bits;
+
+    /** How many longs each row takes */
+    private final int stride;
+
+    /** When the overlay file was last modified, in milliseconds */
+    private final long lastModified;
+
+    /**
+     * Build a mask from a decoded overlay
+     *
+     * @param overlay The overlay, in our layout
+     * @param lastModified When its file was last modified, in milliseconds
+     */
+    OverlayMask(BufferedImage overlay, long lastModified) {
+        this(overlay, 0, 0, lastModified);
+    }
+
+    /**
+     * Build a mask from a decoded overlay that starts above and to the left
+     * of the image, as it does on a thumbnail that was cropped
+     *
+     * @param overlay The overlay, in our layout
+     * @param left How many of its columns are left of the image
+     * @param top How many of its rows are above the image
+     * @param lastModified When its file was last modified, in milliseconds
+     */
+    OverlayMask(BufferedImage overlay, int left, int top, long lastModified) {
+        this.width = Math.max(0, overlay.getWidth() - left);
+        this.height = Math.max(0, overlay.getHeight() - top);
+        this.stride = (width + 63) >>> 6;
+        this.bits = new long[stride * height];
+        this.lastModified = lastModified;
+
+        int[] pixels = Pixels.data(overlay);
+        int overlayWidth = overlay.getWidth();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (Pixels.alpha(pixels[(y + top) * overlayWidth + x + left]) > SOLID_ALPHA) {
+                    bits[y * stride + (x >>> 6)] |= 1L << x;
+                }
+            }
+        }
+    }
+
+    /**
+     * Darken an image wherever the overlay is solid, with the overlay's top
+     * left corner on the image's
+     *
+     * @param in The packed pixels to read
+     * @param out Where the opaque results go, the same size
+     * @param imageWidth The image's width, at least the overlay's
+     * @param imageHeight The image's height, at least the overlay's
+     * @param bands Splits the pass across cores
+     */
+    void darken(int[] in, int[] out, int imageWidth, int imageHeight, RowBands bands) {
+        bands.forEachRow(imageWidth, imageHeight, (start, end) -> {
+            for (int y = start; y < end; y++) {
+                int row = y * imageWidth;
+                int x = 0;
+                if (y < height) {
+                    int maskRow = y * stride;
+                    for (; x < width; x++) {
+                        int pixel = in[row + x];
+                        out[row + x] = (bits[maskRow + (x >>> 6)] & (1L << x)) != 0
+                                ? Pixels.OPAQUE | DARKER[Pixels.red(pixel)] << 16 | DARKER[Pixels.green(pixel)] << 8 | DARKER[Pixels.blue(pixel)]
+                                : Pixels.OPAQUE | pixel;
+                    }
+                }
+                //Past the overlay the image is only made opaque
+                for (; x < imageWidth; x++) {
+                    out[row + x] = Pixels.OPAQUE | in[row + x];
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The overlay's width
+     */
+    int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return The overlay's height
+     */
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return When the overlay file was last modified, in milliseconds
+     */
+    long getLastModified() {
+        return lastModified;
+    }
+}
@@ -0,0 +1,190 @@
+package ichabod;
+
+import java.util.Arrays;
+
+/**
+ * Finds the nearest palette color (by L1 distance) for any RGB color in
+ * constant time. RGB space is cut into a 32x32x32 cube of cells, and each
+ * cell remembers which palette colors could be nearest to something inside
+ * it. Most cells have just one, so the answer is a single array read; cells
+ * that straddle a boundary between palette colors measure only their few
+ * candidates. The answer is always exactly what measuring every palette color
+ * would give, ties going to the first.
+ */
+class PaletteLookup {
+
+    /** Bits of each channel that pick a cell */
+    private static final int BITS = 5;
+
+    /** Cells along each side of the cube */
+    private static final int SIDE = 1 << BITS;
+
+    /** How many channel values each cell covers */
+    private static final int SPAN = 256 / SIDE;
+
+    /** The palette */
+    private final int[] red;
+    private final int[] green;
+    private final int[] blue;
+
+    /** Where each cell's candidates start in candidates; the next cell's start is where they end */
+    private final int[] cellStart;
+
+    /** Every cell's candidate palette indices, in palette order */
+    private final short[] candidates;
+
+    /**
+     * Build the cube for a palette
+     *
+     * @param palette The palette as packed pixels, at most 32768 colors
+     */
+    PaletteLookup(int[] palette) {
+        int k = palette.length;
+        red = new int[k];
+        green = new int[k];
+        blue = new int[k];
+        for (int c = 0; c < k; c++) {
+            red[c] = Pixels.red(palette[c]);
+            green[c] = Pixels.green(palette[c]);
+            blue[c] = Pixels.blue(palette[c]);
+        }
+
+        //How close and how far each palette color can get to each slice of the cube, per channel
+        int[][] nearRed = slices(red);
+        int[][] nearGreen = slices(green);
+        int[][] nearBlue = slices(blue);
+        int[][] farRed = farSlices(red);
+        int[][] farGreen = farSlices(green);
+        int[][] farBlue = farSlices(blue);
+
+        int cells = SIDE * SIDE * SIDE;
+        cellStart = new int[cells + 1];
+        short[] found = new short[cells * Math.min(k, 4)];
+        int used = 0;
+        int[] partialNear = new int[k];
+        int[] partialFar = new int[k];
+        int[] nearest = new int[k];
+
+        int cell = 0;
+        for (int ri = 0; ri < SIDE; ri++) {
+            for (int gi = 0; gi < SIDE; gi++) {
+                for (int c = 0; c < k; c++) {
+                    partialNear[c] = nearRed[c][ri] + nearGreen[c][gi];
+                    partialFar[c] = farRed[c][ri] + farGreen[c][gi];
+                }
+                for (int bi = 0; bi < SIDE; bi++, cell++) {
+                    //The furthest anything in the cell can be from its nearest palette color
+                    int bound = Integer.MAX_VALUE;
+                    for (int c = 0; c < k; c++) {
+                        nearest[c] = partialNear[c] + nearBlue[c][bi];
+                        bound = Math.min(bound, partialFar[c] + farBlue[c][bi]);
+                    }
+
+                    //A palette color that can't get that close to anything in the cell never wins here
+                    cellStart[cell] = used;
+                    for (int c = 0; c < k; c++) {
+                        if (nearest[c] <= bound) {
+                            if (used == found.length) {
+                                found = Arrays.copyOf(found, found.length * 2);
+                            }
+                            found[used++] = (short) c;
+                        }
+                    }
+                }
+            }
+        }
+        cellStart[cells] = used;
+        candidates = Arrays.copyOf(found, used);
+    }
+
+    /**
+     * @param values One channel of the palette
+     * @return For each palette color and slice, how close the color can get to the slice on that channel
+     */
+    private static int[][] slices(int[] values) {
+        int[][] table = new int[values.length][SIDE];
+        for (int c = 0; c < values.length; c++) {
+            for (int i = 0; i < SIDE; i++) {
+                table[c][i] = near(values[c], i * SPAN);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * @param values One channel of the palette
+     * @return For each palette color and slice, how far the color can get from the slice on that channel
+     */
+    private static int[][] farSlices(int[] values) {
+        int[][] table = new int[values.length][SIDE];
+        for (int c = 0; c < values.length; c++) {
+            for (int i = 0; i < SIDE; i++) {
+                table[c][i] = far(values[c], i * SPAN);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * @param value A channel value
+     * @param low The first value a cell covers on that channel
+     * @return How close the value can get to the cell on that channel
+     */
+    private static int near(int value, int low) {
+        if (value < low) {
+            return low - value;
+        }
+        if (value > low + SPAN - 1) {
+            return value - (low + SPAN - 1);
+        }
+        return 0;
+    }
+
+    /**
+     * @param value A channel value
+     * @param low The first value a cell covers on that channel
+     * @return How far the value can get from the cell on that channel
+     */
+    private static int far(int value, int low) {
+        return Math.max(Math.abs(value - low), Math.abs(value - (low + SPAN - 1)));
+    }
+
+    /**
+     * Find the nearest palette color
+     *
+     * @param r Red from 0 to 255
+     * @param g Green from 0 to 255
+     * @param b Blue from 0 to 255
+     * @return The index of the nearest palette color
+     */
+    int nearest(int r, int g, int b) {
+        int cell = ((r / SPAN) << (2 * BITS)) | ((g / SPAN) << BITS) | (b / SPAN);
+        int start = cellStart[cell];
+        int end = cellStart[cell + 1];
+        if (end - start == 1) {
+            return candidates[start];
+        }
+
+        int best = candidates[start];
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = start; i < end; i++) {
+            int c = candidates[i];
+            int distance = Math.abs(r - red[c]) + Math.abs(g - green[c]) + Math.abs(b - blue[c]);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Find the nearest palette color
+     *
+     * @param rgb A packed pixel; alpha is ignored
+     * @return The index of the nearest palette color
+     */
+    int nearest(int rgb) {
+        return nearest(Pixels.red(rgb), Pixels.green(rgb), Pixels.blue(rgb));
+    }
+}
@@ -0,0 +1,101 @@
+package ichabod;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Helpers for working on images as packed ARGB ints. Every image the kernels
+ * touch is TYPE_INT_ARGB, so a pixel is one int (0xAARRGGBB) in a row-major
+ * array and reading or writing one doesn't convert color models or allocate.
+ */
+final class Pixels {
+
+    /** Opaque black, i.e., the alpha bits of an opaque pixel */
+    static final int OPAQUE = 0xFF000000;
+
+    private Pixels() {
+    }
+
+    /**
+     * Create a new image in our layout
+     *
+     * @param width The width in pixels
+     * @param height The height in pixels
+     * @return A transparent TYPE_INT_ARGB image
+     */
+    static BufferedImage create(int width, int height) {
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    /**
+     * Get an image in our layout, converting it if it isn't already. The
+     * pixel values are exactly what getRGB would have returned.
+     *
+     * @param image Any image
+     * @return The same image if it was already TYPE_INT_ARGB, a converted copy otherwise
+     */
+    static BufferedImage toArgb(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB) {
+            return image;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        BufferedImage argb = create(width, height);
+        image.getRGB(0, 0, width, height, data(argb), 0, width);
+        return argb;
+    }
+
+    /**
+     * Get the pixels behind an image. Writing to the array writes to the image.
+     *
+     * @param image A TYPE_INT_ARGB image
+     * @return The pixels, row by row
+     */
+    static int[] data(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * @param argb A packed pixel
+     * @return Its red value from 0 to 255
+     */
+    static int red(int argb) {
+        return (argb >> 16) & 0xFF;
+    }
+
+    /**
+     * @param argb A packed pixel
+     * @return Its green value from 0 to 255
+     */
+    static int green(int argb) {
+        return (argb >> 8) & 0xFF;
+    }
+
+    /**
+     * @param argb A packed pixel
+     * @return Its blue value from 0 to 255
+     */
+    static int blue(int argb) {
+        return argb & 0xFF;
+    }
+
+    /**
+     * @param argb A packed pixel
+     * @return Its alpha value from 0 to 255
+     */
+    static int alpha(int argb) {
+        return argb >>> 24;
+    }
+
+    /**
+     * Pack an opaque pixel
+     *
+     * @param r Red from 0 to 255
+     * @param g Green from 0 to 255
+     * @param b Blue from 0 to 255
+     * @return The packed pixel
+     */
+    static int opaque(int r, int g, int b) {
+        return OPAQUE | (r << 16) | (g << 8) | b;
+    }
+}
@@ -0,0 +1,146 @@
+package ichabod;
+
+/**
+ * A per-pixel color change that looks at nothing but the pixel it changes.
+ * Each output channel is one input channel passed through a 256-entry table,
+ * which covers channel swaps like grayscale as well as curves like negation.
+ *
+ * Two of these compose into one of the same shape, so any run of them in a
+ * pipeline can be folded together and applied in a single pass over memory
+ * instead of one pass each. The output is always opaque.
+ */
+class PointOp {
+
+    /** How far each channel is shifted in a packed pixel: red, green, blue */
+    private static final int[] SHIFTS = {16, 8, 0};
+
+    /** Which input channel each output channel reads: 0 red, 1 green, 2 blue */
+    private final int[] sources;
+
+    /** The table each output channel's value goes through */
+    private final int[][] tables;
+
+    /**
+     * @param sources Which input channel each output channel reads
+     * @param tables The table each output channel's value goes through
+     */
+    private PointOp(int[] sources, int[][] tables) {
+        this.sources = sources;
+        this.tables = tables;
+    }
+
+    /**
+     * @return The op that sets every channel to green, like the grayscale command
+     */
+    static PointOp grayscale() {
+        return new PointOp(new int[]{1, 1, 1}, new int[][]{identity(), identity(), identity()});
+    }
+
+    /**
+     * @return The op that takes every channel from 255, like the negateImage command
+     */
+    static PointOp negate() {
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) {
+            table[v] = 255 - v;
+        }
+        return new PointOp(new int[]{0, 1, 2}, new int[][]{table, table.clone(), table.clone()});
+    }
+
+    /**
+     * @return A table that leaves values as they are
+     */
+    private static int[] identity() {
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) {
+            table[v] = v;
+        }
+        return table;
+    }
+
+    /**
+     * Compose two ops
+     *
+     * @param next The op to run on this one's output
+     * @return One op that does this one and then next
+     */
+    PointOp then(PointOp next) {
+        int[] composedSources = new int[3];
+        int[][] composedTables = new int[3][256];
+        for (int c = 0; c < 3; c++) {
+            //Output channel c reads our channel next.sources[c], which reads the input's sources[that]
+            int middle = next.sources[c];
+            composedSources[c] = sources[middle];
+            for (int v = 0; v < 256; v++) {
+                composedTables[c][v] = next.tables[c][tables[middle][v]];
+            }
+        }
+        return new PointOp(composedSources, composedTables);
+    }
+
+    /**
+     * Run the op over an image
+     *
+     * @param in The packed pixels to read
+     * @param out Where the opaque results go, the same size
+     * @param width The image's width
+     * @param height The image's height
+     * @param bands Splits the pass across cores
+     */
+    void apply(int[] in, int[] out, int width, int height, RowBands bands) {
+        //Table lookups cost more than the memory traffic we're saving, so when
+        //every table just flips bits, as they do for the commands we have, flip them directly
+        int flips = flips();
+        if (flips >= 0 && sources[0] == 0 && sources[1] == 1 && sources[2] == 2) {
+            bands.forEachRow(width, height, (start, end) -> {
+                for (int i = start * width; i < end * width; i++) {
+                    out[i] = Pixels.OPAQUE | ((in[i] ^ flips) & 0x00FFFFFF);
+                }
+            });
+            return;
+        }
+        if (flips >= 0 && sources[0] == sources[1] && sources[1] == sources[2]) {
+            int shift = SHIFTS[sources[0]];
+            bands.forEachRow(width, height, (start, end) -> {
+                for (int i = start * width; i < end * width; i++) {
+                    out[i] = Pixels.OPAQUE | (((in[i] >> shift) & 0xFF) * 0x010101 ^ flips);
+                }
+            });
+            return;
+        }
+
+        int redShift = SHIFTS[sources[0]];
+        int greenShift = SHIFTS[sources[1]];
+        int blueShift = SHIFTS[sources[2]];
+        int[] red = tables[0];
+        int[] green = tables[1];
+        int[] blue = tables[2];
+
+        bands.forEachRow(width, height, (start, end) -> {
+            for (int i = start * width; i < end * width; i++) {
+                int pixel = in[i];
+                out[i] = Pixels.OPAQUE | (red[(pixel >> redShift) & 0xFF] << 16)
+                        | (green[(pixel >> greenShift) & 0xFF] << 8) | blue[(pixel >> blueShift) & 0xFF];
+            }
+        });
+    }
+
+    /**
+     * See whether every table is just v ^ some constant, like identity (0) and negation (255)
+     *
+     * @return The constants packed like a pixel's red, green and blue, or -1 if some table is anything else
+     */
+    private int flips() {
+        int flips = 0;
+        for (int c = 0; c < 3; c++) {
+            int flip = tables[c][0];
+            for (int v = 0; v < 256; v++) {
+                if (tables[c][v] != (v ^ flip)) {
+                    return -1;
+                }
+            }
+            flips |= flip << SHIFTS[c];
+        }
+        return flips;
+    }
+}
@@ -1,24 +1,30 @@
 package ichabod;
 
 import java.awt.Color;
-import java.awt.Graphics;
 import java.awt.Point;
-import java.awt.Transparency;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
-import javax.imageio.ImageIO;
 
 /**
  *
@@ -26,141 +32,769 @@ import javax.imageio.ImageIO;
  */
 public class Processor {
 
+    /** Decoded source images, shared by every request */
+    private static final DecodedImageCache decodedImages = DecodedImageCache.fromSystemProperties();
+
+    /** Encoded results, shared by every request */
+    private static final ResultCache results = ResultCache.fromSystemProperties();
+
+    /** What pipelines made before their last stage, so pipelines that start the same way share the work */
+    private static final DecodedImageCache pipelinePrefixes = new DecodedImageCache(
+            Long.getLong("ichabod.pipelineCacheBytes", 64L * 1024 * 1024));
+
+    /** The arguments that only change how a result is encoded, not its pixels */
+    private static final List<String> encodingArguments = Arrays.asList("format", "quality");
+
+    /** The most colors reduceColor will make */
+    private static final int MAX_COLORS = 256;
+
+    /** What reduceColor seeds k-means with unless the request says otherwise */
+    private static final long REDUCE_COLOR_SEED = 2980;
+
+    /** The most k-means rounds reduceColor runs if it doesn't settle first */
+    private static final int REDUCE_COLOR_ROUNDS = 10;
+
+    /** Splits the big kernels across cores */
+    private static final RowBands bands = RowBands.fromSystemProperties();
+
+    /** Error diffusion for monochrome, which can't be split into bands */
+    private static final ErrorDiffusion dithering = ErrorDiffusion.fromSystemProperties(bands);
+
+    /** Runs the kernels for edges and histograms */
+    private static final Convolution convolution = new Convolution(bands);
+
+    /** Nanoseconds per pixel, on one core, for each unit of Convolution.workPerPixel */
+    private static final double NANOS_PER_CONVOLUTION_WORK = 5;
+
+    /** The masks opaqueshadow darkens under, loaded once per version of each overlay file */
+    private static final OverlayCache overlays = new OverlayCache();
+
+    /** The argument render() tells stages the original's size in, as WIDTHxHEIGHT, when they run on a thumbnail */
+    private static final String SOURCE_SIZE = "sourceSize";
+
+    /** The overlay opaqueshadow draws unless the request says otherwise */
+    private static final String DEFAULT_OVERLAY = "SombraSkull.png";
+
+    /** Half, quarter and smaller copies of the images we serve, for thumbnails to start from */
+    private static final PyramidStore pyramids = PyramidStore.shared();
+
+    /** Turns results into PNG, JPEG or BMP bytes */
+    private static final ImageEncoder encoder = ImageEncoder.fromSystemProperties();
+
+    /** Identical requests that are running right now, so concurrent duplicates share one computation */
+    private static final SingleFlight<String, byte[]> inFlight = new SingleFlight<>();
+
+    /** Thumbnails being made right now, so each is decoded and shrunk once */
+    private static final SingleFlight<String, BufferedImage> shrinking = new SingleFlight<>();
+
+    /** Runs the cells of batch requests. Each cell still waits for a CPU permit like any other request. */
+    private static final ExecutorService batchWorkers = Executors.newFixedThreadPool(
+            Integer.getInteger("ichabod.batchThreads", Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "ichabod-batch");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /** Limits how many requests process images at once, or null for no limit */
+    private final WorkerPool workerPool;
+
+    /** Every command we accept, with what it takes to run it */
+    private final CommandRegistry operations;
+
+    /**
+     * Create a processor that doesn't limit how many requests run at once
+     */
+    public Processor() {
+        this(null);
+    }
+
+    /**
+     * Create a processor
+     *
+     * @param workerPool The pool whose CPU permits limit how many requests process images at once, or null for no limit
+     */
+    public Processor(WorkerPool workerPool) {
+        this.workerPool = workerPool;
+        this.operations = register();
+    }
+
+    /**
+     * List every command we accept. The costs are per input pixel on one
+     * core, measured on a 640x480 photo with the default arguments. The
+     * convolving commands work theirs out from the kernel they're given.
+     *
+     * @return The registry
+     */
+    private CommandRegistry register() {
+        String[] borders = new String[Convolution.Border.values().length];
+        for (int i = 0; i < borders.length; i++) {
+            borders[i] = Convolution.Border.values()[i].name().toLowerCase();
+        }
+        Operation.Parameter kernel = Operation.Parameter.choice("kernel", "The kernel to convolve with", "box", Kernel.NAMES);
+        Operation.Parameter radius = Operation.Parameter.integer("radius", "How far the kernel reaches", 0, Kernel.MAX_RADIUS, "2");
+        Operation.Parameter border = Operation.Parameter.choice("border", "How pixels past the edge are made up", "clamp", borders);
+
+        return new CommandRegistry()
+                .register(new Operation("edges", "Convolve with a kernel", Operation.Kind.NEIGHBORHOOD, Operation.Shape.SAME, 25,
+                        (in, out, arguments) -> {
+                            edges(in, out, arguments);
+                            return out;
+                        }, kernel, radius, border)
+                        .costing((arguments, width, height) -> 5 + convolutionNanos(arguments, width, height)))
+                .register(new Operation("histograms", "Convolve, then chart each row's and column's brightness in the margins",
+                        Operation.Kind.GLOBAL, Operation.Shape.MARGINS, 34,
+                        (in, out, arguments) -> histograms(in, arguments), kernel, radius, border)
+                        .costing((arguments, width, height) -> 14 + convolutionNanos(arguments, width, height)))
+                .register(Operation.data("histogram", "Channel histograms and row and column brightness as JSON", 8,
+                        (in, arguments) -> histogram(in)))
+                .register(new Operation("opaqueshadow", "Darken wherever an overlay is solid", Operation.Kind.NEIGHBORHOOD,
+                        Operation.Shape.SAME, 1.5, this::opaqueshadow,
+                        Operation.Parameter.image("overlay", "The overlay, drawn from the top left corner", DEFAULT_OVERLAY)))
+                .register(new Operation("reduceColor", "Reduce to a palette picked by k-means", Operation.Kind.GLOBAL, Operation.Shape.SAME, 200,
+                        (in, out, arguments) -> {
+                            reduceColor(in, out, arguments);
+                            return out;
+                        },
+                        Operation.Parameter.integer("maxColors", "The most colors in the palette", 1, MAX_COLORS, "8"),
+                        Operation.Parameter.integer("seed", "Seeds the choice of starting colors", Long.MIN_VALUE, Long.MAX_VALUE,
+                                "" + REDUCE_COLOR_SEED),
+                        Operation.Parameter.flag("dither", "Floyd-Steinberg dither to the palette")))
+                .register(Operation.point("grayscale", "Set every channel to green", 0.6, PointOp.grayscale(), (in, out, arguments) -> {
+                    grayscale(in, out);
+                    return out;
+                }))
+                .register(new Operation("monochrome", "Dither to black and white", Operation.Kind.GLOBAL, Operation.Shape.SAME, 8,
+                        (in, out, arguments) -> {
+                            monochrome(in, out);
+                            return out;
+                        }))
+                .register(Operation.point("negateImage", "Negate every channel", 0.6, PointOp.negate(), (in, out, arguments) -> {
+                    negateImage(in, out);
+                    return out;
+                }))
+                .register(new Operation("horizontalflip", "Mirror left to right", Operation.Kind.GEOMETRIC, Operation.Shape.SAME, 1.1,
+                        (in, out, arguments) -> {
+                            horizontalflip(in, out);
+                            return out;
+                        }))
+                .register(new Operation("rotate", "Turn a quarter clockwise", Operation.Kind.GEOMETRIC, Operation.Shape.TRANSPOSED, 2.6,
+                        (in, out, arguments) -> rotate(in)));
+    }
+
+    /**
+     * Estimate what convolving takes with a request's kernel, which is most of
+     * what edges and histograms cost. The radius alone can make it 40 times
+     * the default's.
+     *
+     * @param arguments The request's arguments, already validated
+     * @param width The image's width
+     * @param height The image's height
+     * @return About how many nanoseconds per pixel on one core
+     */
+    private static double convolutionNanos(Map<String, String> arguments, int width, int height) {
+        return NANOS_PER_CONVOLUTION_WORK * convolution.workPerPixel(Kernel.fromArguments(arguments), width, height);
+    }
+
     /**
      * Process a command
      *
-     * @param command The command to process
+     * @param command The command to process, or a pipeline of them like grayscale|edges|rotate
      * @param file The file to process the command on
      * @param arguments A hashmap of the arguments passed with the command
      * @return The filename of the resulting temp image on success, null
      * otherwise
+     * @throws ServerBusyException If we waited too long for a CPU permit
      */
-    public byte[] Process(String command, String file, HashMap<String, String> arguments) {
+    public byte[] Process(String command, String file, HashMap<String, String> arguments) throws ServerBusyException {
         //Generate a new temp file name
         String filename = "" + Math.random() + ".png";
         try {
-            //Read the original image
-            BufferedImage bi = ImageIO.read(new File(file));
-
-            int width = bi.getWidth();
-            int height = bi.getHeight();
-
-            //Generate a new image in memory
-            BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-
-            //Choose the right method
-            if (command.equals("grayscale")) {
-                grayscale(bi, out);
-            } else if (command.equals("monochrome")) {
-                monochrome(bi, out);
-            } else if (command.equals("edges")) {
-                edges(bi, out);
-            } else if (command.equals("reduceColor")) {
-                reduceColor(bi, out, arguments);
-            } else if (command.equals("histograms")) {
-                out = histograms(bi);
-            } else if (command.equals("negateImage")) {
-                negateImage(bi, out);
-            } else if (command.equals("horizontalflip")){
-                horizontalflip(bi, out);
-            } else if (command.equals("rotate")) {
-                out = rotate(bi);
-            } else if (command.equals("opaqueshadow")){
-                out = opaqueshadow(bi);
-            }
-            else {
+            Operation[] stages = stages(command);
+            if (stages == null) {
                 return null;
             }
 
-            //Write the image
-            //ImageIO.write(out, "png", new File(filename));
-            //return "\\" + filename;
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            //Data is JSON whatever format was asked for, so the format mustn't split its results
+            if (endsWithData(stages)) {
+                arguments.keySet().removeAll(encodingArguments);
+            }
+
+            //Turn away bad arguments before we decode anything or wait for a CPU
+            for (Operation stage : stages) {
+                stage.validate(arguments);
+            }
+            ImageEncoder.Format format = ImageEncoder.Format.fromArguments(arguments);
+            encoder.quality(arguments);
+            Thumbnail thumbnail = Thumbnail.fromArguments(arguments);
+
+            //Commands that draw another image depend on that file's version as well as this one's
+            for (Operation stage : stages) {
+                for (Operation.Parameter parameter : stage.getParameters()) {
+                    if (parameter.getType().equals("image")) {
+                        Path overlay = Paths.get(arguments.getOrDefault(parameter.getName(), parameter.getDefaultValue()));
+                        arguments.put(parameter.getName() + "Modified", Long.toString(OverlayCache.lastModified(overlay)));
+                    }
+                }
+            }
 
-            ImageIO.write(out, "png", baos);
+            //If we've already done this exact work, send what we made last time
+            Path path = Paths.get(file);
+            long lastModified = Files.getLastModifiedTime(path).toMillis();
+            String resultKey = ResultCache.key(command, path, lastModified, arguments);
+            byte[] cached = results.get(resultKey);
+            if (cached != null) {
+                return cached;
+            }
 
-            return baos.toByteArray();
+            //If someone else is already making this result, wait for theirs instead of making our own
+            return inFlight.run(resultKey, () -> {
+                //Only the thread doing the work holds a CPU permit, not the ones waiting on it. Big jobs need a heavy permit too.
+                double estimatedMillis = workerPool == null ? 0 : estimateMillis(stages, arguments, path, thumbnail, format);
+                if (workerPool != null && !workerPool.acquireCpu(estimatedMillis)) {
+                    throw new ServerBusyException();
+                }
+                byte[] bytes;
+                try {
+                    bytes = render(stages, path, lastModified, arguments);
+                } finally {
+                    if (workerPool != null) {
+                        workerPool.releaseCpu(estimatedMillis);
+                    }
+                }
 
+                if (bytes != null) {
+                    results.put(resultKey, bytes);
+                }
+                return bytes;
+            });
+
+        } catch (ServerBusyException ex) {
+            throw ex;
+        } catch (IllegalArgumentException ex) {
+            //A bad number or option in the query; there's nothing to send back
+            return null;
         } catch (IOException ex) {
             Logger.getLogger(StarterSocket.class.getName()).log(Level.SEVERE, null, ex);
         }
         return null;
     }
+
     /**
-     * Negates the colors of the image.
-     * @param bi The buffered image to be negated
-     * @param out The negated image
+     * Run every command on every image, handing each result over as soon as
+     * it's done. Cells are started image by image so the ones sharing a decode
+     * run together, and they all share the usual caches, so each image is
+     * decoded once.
+     *
+     * @param images The files to process
+     * @param commands The commands or pipelines to run on each of them
+     * @param arguments The arguments every cell is run with
+     * @param sink Takes each cell as it finishes, in whatever order that is, and returns false to stop early
+     * @return True if every cell was handed to the sink, false if it stopped us
      */
-    private void negateImage(BufferedImage bi, BufferedImage out) {
-        for (int y = 0; y < bi.getHeight(); y++){
-            for (int x = 0; x < bi.getWidth(); x++) {
-                Color pixel = new Color(bi.getRGB(x, y));
-                int r = 255 - pixel.getRed();
-                int g = 255 - pixel.getGreen();
-                int b = 255 - pixel.getBlue();
-                
-                
-                r = clamp255(r);
-                g = clamp255(g);
-                b = clamp255(b);
-                
-                Color newColor = new Color(r, g, b);
-                out.setRGB(x, y, newColor.getRGB());
+    public boolean ProcessBatch(List<String> images, List<String> commands, HashMap<String, String> arguments, Predicate<BatchCell> sink) {
+        CompletionService<BatchCell> finished = new ExecutorCompletionService<>(batchWorkers);
+        List<Future<BatchCell>> cells = new ArrayList<>();
+        for (String image : images) {
+            for (String command : commands) {
+                //Process adds to the arguments, so each cell gets its own
+                HashMap<String, String> cellArguments = new HashMap<>(arguments);
+                cells.add(finished.submit(() -> {
+                    try {
+                        return new BatchCell(image, command, Process(command, image, cellArguments), false);
+                    } catch (ServerBusyException ex) {
+                        return new BatchCell(image, command, null, true);
+                    }
+                }));
             }
         }
-            
-    }
-    
-    private BufferedImage opaqueshadow(BufferedImage bi) {
-        BufferedImage shadow = null;
-        
+
         try {
-            shadow = ImageIO.read(new File("SombraSkull.png"));
-        } catch (IOException e){
-            return bi;
+            for (int i = 0; i < cells.size(); i++) {
+                if (!sink.test(finished.take().get())) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException ex) {
+            Logger.getLogger(StarterSocket.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        } finally {
+            //Cells that haven't started yet aren't wanted any more. The ones running finish and are cached.
+            for (Future<BatchCell> cell : cells) {
+                cell.cancel(false);
+            }
         }
+    }
 
-        int shadowWidth = shadow.getWidth();
-        int shadowHeight = shadow.getHeight();
-        
-        int biWidth = bi.getWidth();
-        int biHeight = bi.getHeight();
-        
-        BufferedImage output = new BufferedImage(biWidth, biHeight, BufferedImage.TYPE_4BYTE_ABGR);
-        
-        if(shadowWidth > biWidth || shadowHeight > biHeight)
-        {
-            return bi;
+    /**
+     * One command run on one image as part of a batch
+     */
+    public static class BatchCell {
+
+        /** The file that was processed */
+        private final String image;
+
+        /** The command or pipeline that was run */
+        private final String command;
+
+        /** What Process made, or null if it failed */
+        private final byte[] result;
+
+        /** True if the cell gave up waiting for a CPU permit */
+        private final boolean busy;
+
+        BatchCell(String image, String command, byte[] result, boolean busy) {
+            this.image = image;
+            this.command = command;
+            this.result = result;
+            this.busy = busy;
         }
-        
-        for(int j = 0; j < biHeight; j++) {
-            for(int i = 0; i < biWidth; i++) {
-                Color bipixel = new Color(bi.getRGB(i, j));
-                if(j < shadowHeight && i < shadowWidth) {
-                    Color pixel = new Color(shadow.getRGB(i, j));
-                    if(pixel.getAlpha() > 20) {
-                        output.setRGB(i, j, bipixel.darker().getRGB());
-                    } else {
-                        output.setRGB(i, j, bipixel.getRGB());
-                    }
+
+        /**
+         * @return The file that was processed
+         */
+        public String getImage() {
+            return image;
+        }
+
+        /**
+         * @return The command or pipeline that was run
+         */
+        public String getCommand() {
+            return command;
+        }
+
+        /**
+         * @return What Process made, or null if the command or its arguments were no good or we were too busy
+         */
+        public byte[] getResult() {
+            return result;
+        }
+
+        /**
+         * @return True if the cell gave up waiting for a CPU permit
+         */
+        public boolean isBusy() {
+            return busy;
+        }
+    }
+
+    /**
+     * Split a command into the stages of its pipeline
+     *
+     * @param command A command, or commands separated by | (or %7C), or nothing for the image as it is
+     * @return The stages in order, or null if one isn't a command we know or
+     * a data command comes anywhere but last
+     */
+    private Operation[] stages(String command) {
+        if (command.isEmpty()) {
+            return new Operation[0];
+        }
+        String[] names = command.split("\\||%7[Cc]", -1);
+        Operation[] stages = new Operation[names.length];
+        for (int i = 0; i < names.length; i++) {
+            stages[i] = operations.get(names[i]);
+            if (stages[i] == null) {
+                return null;
+            }
+            if (stages[i].isData() && i != names.length - 1) {
+                return null;
+            }
+        }
+        return stages;
+    }
+
+    /**
+     * @param stages A pipeline
+     * @return True if it answers with JSON rather than an image
+     */
+    private static boolean endsWithData(Operation[] stages) {
+        return stages.length > 0 && stages[stages.length - 1].isData();
+    }
+
+    /**
+     * Estimate how long a request will take on one core, from the size the
+     * image index has for it, so the worker pool can tell heavy from light
+     *
+     * @param stages The commands to run
+     * @param arguments The request's arguments, already validated
+     * @param path The image
+     * @param thumbnail The size the commands run at, or null for the full size
+     * @param format What the result will be encoded as
+     * @return About how many milliseconds it takes, or 0 if we don't know how big the image is
+     */
+    private double estimateMillis(Operation[] stages, Map<String, String> arguments, Path path, Thumbnail thumbnail,
+            ImageEncoder.Format format) {
+        ImageIndex.ImageInfo info = ImageIndex.shared().get(path.normalize().toString());
+        if (info == null || info.getWidth() == 0) {
+            return 0;
+        }
+        int[] size = thumbnail == null ? new int[]{info.getWidth(), info.getHeight()}
+                : thumbnail.outputSize(info.getWidth(), info.getHeight());
+        double nanos = CommandRegistry.estimateNanos(stages, arguments, size[0], size[1]);
+        if (!endsWithData(stages)) {
+            int[] output = CommandRegistry.outputSize(stages, size[0], size[1]);
+            nanos += format.getNanosPerPixel() * output[0] * output[1];
+        }
+        return nanos / 1e6;
+    }
+
+    /**
+     * Work out the fewest passes that run a pipeline. A run of point and
+     * geometric commands with more than one point command in it becomes one
+     * pass for all the point commands, folded into a single op, followed by
+     * the geometric ones; moving a pixel and changing its color don't care
+     * which happens first. Everything else is one pass per command.
+     *
+     * @param stages The commands, in order
+     * @return The passes, in order
+     */
+    private List<Pass> compile(Operation[] stages) {
+        List<Pass> passes = new ArrayList<>();
+        int i = 0;
+        while (i < stages.length) {
+            if (!fusable(stages[i])) {
+                passes.add(new Pass(stages[i], null, i + 1));
+                i++;
+                continue;
+            }
+
+            //Gather the run of commands that only look at one pixel at a time
+            int end = i;
+            PointOp fused = null;
+            int points = 0;
+            List<Operation> moves = new ArrayList<>();
+            while (end < stages.length && fusable(stages[end])) {
+                if (stages[end].getKind() == Operation.Kind.POINT) {
+                    PointOp op = stages[end].getPointOp();
+                    fused = fused == null ? op : fused.then(op);
+                    points++;
                 } else {
-                output.setRGB(i, j, bipixel.getRGB());
+                    moves.add(stages[end]);
+                }
+                end++;
+            }
+
+            if (points < 2) {
+                //Nothing to fold, and the commands' own loops are a little quicker than a table
+                for (int j = i; j < end; j++) {
+                    passes.add(new Pass(stages[j], null, j + 1));
+                }
+            } else {
+                //Until the last pass of the run, the passes done don't make up a start of the pipeline
+                passes.add(new Pass(null, fused, moves.isEmpty() ? end : -1));
+                for (int j = 0; j < moves.size(); j++) {
+                    passes.add(new Pass(moves.get(j), null, j == moves.size() - 1 ? end : -1));
                 }
             }
+            i = end;
         }
-        
-        /*for(int j = 0; j < shadowHeight; j++) {
-            for(int i = 0; i < shadowWidth; i++) {
-                Color pixel = new Color(shadow.getRGB(i, j));
-                if(pixel.getTransparency() <= Transparency.OPAQUE)
-                {
-                    output.setRGB(i,j, clamp255(output.getRGB(i, j)+ 20));
+        return passes;
+    }
+
+    /**
+     * @param operation A command
+     * @return True if it only looks at one pixel at a time, so it can join a fused run
+     */
+    private static boolean fusable(Operation operation) {
+        return operation.getKind() == Operation.Kind.POINT || operation.getKind() == Operation.Kind.GEOMETRIC;
+    }
+
+    /**
+     * Decode an image, run a pipeline of commands on it and encode the result.
+     * The passes run one after another in memory, handing each other images
+     * rather than bytes, and an image a pass has finished reading is reused
+     * for the next pass's output.
+     *
+     * What a pipeline made before its last pass is kept, so another pipeline
+     * that starts the same way picks up from there.
+     *
+     * @param stages The commands to run, in order
+     * @param path The image file
+     * @param lastModified When the image file was last modified
+     * @param arguments A hashmap of the arguments passed with the command, shared by every stage
+     * @return The encoded result, or null if a command or the image is no good
+     * @throws IOException If the image can't be read or the result can't be encoded
+     */
+    private byte[] render(Operation[] stages, Path path, long lastModified, HashMap<String, String> arguments) throws IOException {
+        //Find out now if the format is no good, before we do the work
+        ImageEncoder.Format format = ImageEncoder.Format.fromArguments(arguments);
+
+        List<Pass> passes = compile(stages);
+        int last = passes.size() - 1;
+
+        //Pick up from the stages before the last pass if they've been run before and are still around.
+        //Point and geometric stages are as quick to run again as to copy, so they aren't worth keeping.
+        int done = last > 0 ? passes.get(last - 1).stagesDone : 0;
+        boolean worthKeeping = false;
+        String[] names = new String[Math.max(done, 0)];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = stages[i].getName();
+            worthKeeping |= !fusable(stages[i]);
+        }
+        HashMap<String, String> pixelArguments = new HashMap<>(arguments);
+        pixelArguments.keySet().removeAll(encodingArguments);
+        String prefixKey = worthKeeping
+                ? ResultCache.key(String.join("|", names), path, lastModified, pixelArguments)
+                : null;
+        BufferedImage current = prefixKey == null ? null : pipelinePrefixes.getDerived(prefixKey);
+        int first = last;
+
+        //Commands that line another image up with this one have to shrink it as much as this one was
+        Thumbnail thumbnail = Thumbnail.fromArguments(arguments);
+        if (thumbnail != null && drawsImages(stages)) {
+            int[] size = originalSize(path, lastModified);
+            if (size == null) {
+                return null;
+            }
+            arguments = new HashMap<>(arguments);
+            arguments.put(SOURCE_SIZE, size[0] + "x" + size[1]);
+        }
+
+        if (current == null) {
+            //Get the original image, or the size the request asked for. It's shared with other requests, so we only ever read from it.
+            current = source(path, lastModified, thumbnail);
+            if (current == null) {
+                return null; //Not an image we can read
+            }
+            first = 0;
+        }
+
+        //Whether current is ours to write over, and an image nobody needs any more
+        boolean owned = false;
+        BufferedImage spare = null;
+
+        for (int i = first; i <= last; i++) {
+            Pass pass = passes.get(i);
+
+            //Data commands answer with numbers, so there's no image to make or encode
+            if (pass.operation != null && pass.operation.isData()) {
+                return pass.operation.getData().run(current, arguments).getBytes(StandardCharsets.UTF_8);
+            }
+
+            int width = current.getWidth();
+            int height = current.getHeight();
+
+            //Generate a new image in memory, unless an earlier pass left one the right size
+            BufferedImage out = spare != null && spare.getWidth() == width && spare.getHeight() == height
+                    ? spare : Pixels.create(width, height);
+            spare = null;
+
+            BufferedImage result;
+            if (pass.fused != null) {
+                pass.fused.apply(Pixels.data(current), Pixels.data(out), width, height, bands);
+                result = out;
+            } else {
+                result = pass.operation.getBody().run(current, out, arguments);
+            }
+            if (result == null) {
+                return null;
+            }
+
+            if (result != current) {
+                if (owned) {
+                    spare = current;
+                } else if (result != out) {
+                    spare = out;
                 }
+                owned = true;
+            }
+            current = result;
+
+            //Keep what we have before the last pass; it's shared now, so we can't write over it
+            if (i == last - 1 && prefixKey != null) {
+                pipelinePrefixes.putDerived(prefixKey, current);
+                owned = false;
             }
-        }*/
-       
-        return output;
+        }
+
+        //Write the image
+        //ImageIO.write(out, "png", new File(filename));
+        //return "\\" + filename;
+        return encoder.encode(current, format, arguments);
     }
+
+    /**
+     * @param stages The commands in a pipeline
+     * @return True if any of them draws another image on this one
+     */
+    private static boolean drawsImages(Operation[] stages) {
+        for (Operation stage : stages) {
+            for (Operation.Parameter parameter : stage.getParameters()) {
+                if (parameter.getType().equals("image")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find out how big an image is at full size, without decoding it if the index knows
+     *
+     * @param path The image file
+     * @param lastModified When the image file was last modified
+     * @return The width and height, or null if the file isn't an image we can read
+     * @throws IOException If the image can't be read
+     */
+    private int[] originalSize(Path path, long lastModified) throws IOException {
+        ImageIndex.ImageInfo info = ImageIndex.shared().get(path.normalize().toString());
+        if (info != null && info.getWidth() > 0 && info.getLastModified() == lastModified) {
+            return new int[]{info.getWidth(), info.getHeight()};
+        }
+        BufferedImage decoded = decodedImages.get(path, lastModified);
+        return decoded == null ? null : new int[]{decoded.getWidth(), decoded.getHeight()};
+    }
+
+    /**
+     * Get the image a pipeline starts from. For a thumbnail that is the file
+     * decoded as coarsely as the size allows and then shrunk, which is kept
+     * so every command on the same size starts from it.
+     *
+     * @param path The image file
+     * @param lastModified When the image file was last modified
+     * @param thumbnail The size the request asked for, or null for the full size
+     * @return The image, which must not be modified, or null if the file isn't an image we can read
+     * @throws IOException If the image can't be read
+     */
+    private BufferedImage source(Path path, long lastModified, Thumbnail thumbnail) throws IOException {
+        if (thumbnail == null) {
+            return decodedImages.get(path, lastModified);
+        }
+        String key = "thumbnail " + thumbnail.key() + "|" + path.toAbsolutePath().normalize() + "|" + lastModified;
+        BufferedImage cached = decodedImages.getDerived(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        //The cells of a batch tend to want the same thumbnail at the same time, and only one of them should make it
+        return shrinking.run(key, () -> shrink(path, lastModified, thumbnail, key));
+    }
+
+    /**
+     * Decode an image as coarsely as a thumbnail allows and shrink it, then keep the result
+     *
+     * @param path The image file
+     * @param lastModified When the image file was last modified
+     * @param thumbnail The size the request asked for
+     * @param key What to keep the thumbnail under
+     * @return The thumbnail, or null if the file isn't an image we can read
+     * @throws IOException If the image can't be read
+     */
+    private BufferedImage shrink(Path path, long lastModified, Thumbnail thumbnail, String key) throws IOException {
+        //The index knows the size without decoding; if it doesn't have this version, decode the whole file to find out
+        ImageIndex.ImageInfo info = ImageIndex.shared().get(path.normalize().toString());
+        BufferedImage decoded;
+        int width;
+        int height;
+        if (info != null && info.getWidth() > 0 && info.getLastModified() == lastModified) {
+            width = info.getWidth();
+            height = info.getHeight();
+            decoded = pyramidLevel(path, lastModified, thumbnail.scaledSize(width, height));
+            if (decoded == null) {
+                decoded = decodedImages.get(path, lastModified, thumbnail.subsampling(width, height));
+            }
+        } else {
+            decoded = decodedImages.get(path, lastModified);
+            width = decoded == null ? 0 : decoded.getWidth();
+            height = decoded == null ? 0 : decoded.getHeight();
+        }
+        if (decoded == null) {
+            return null;
+        }
+
+        BufferedImage image = thumbnail.apply(decoded, width, height, bands);
+        decodedImages.putDerived(key, image);
+        return image;
+    }
+
+    /**
+     * Get the smallest level of an image's pyramid that's at least a given size
+     *
+     * @param path The image file
+     * @param lastModified When the image file was last modified
+     * @param size The width and height needed
+     * @return The level, which must not be modified, or null if there's no pyramid yet or no level is big enough
+     * @throws IOException If the pyramid can't be read
+     */
+    private BufferedImage pyramidLevel(Path path, long lastModified, int[] size) throws IOException {
+        int level = pyramids.levelFor(path, lastModified, size[0], size[1]);
+        if (level == 0) {
+            return null;
+        }
+        String key = "pyramid 1/" + (1 << level) + "|" + path.toAbsolutePath().normalize() + "|" + lastModified;
+        BufferedImage image = decodedImages.getDerived(key);
+        if (image == null) {
+            image = pyramids.read(path, lastModified, level);
+            if (image != null) {
+                decodedImages.putDerived(key, image);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Negates the colors of the image.
+     * @param bi The buffered image to be negated
+     * @param out The negated image
+     */
+    private void negateImage(BufferedImage bi, BufferedImage out) {
+        int width = bi.getWidth();
+        int[] in = Pixels.data(bi);
+        int[] pixels = Pixels.data(out);
+
+        bands.forEachRow(width, bi.getHeight(), (start, end) -> {
+            //255 - c for every channel is the same as flipping its bits
+            for (int i = start * width; i < end * width; i++) {
+                pixels[i] = Pixels.OPAQUE | (~in[i] & 0x00FFFFFF);
+            }
+        });
+            
+    }
+    
+    /**
+     * Darken an image wherever an overlay is solid
+     *
+     * @param bi The image, which is only read
+     * @param out Where the result goes, the same size as bi
+     * @param arguments The overlay argument, its modified time from Process, and the original's size from render if bi is a thumbnail
+     * @return out, or bi if the overlay is bigger than the image
+     * @throws IOException If the overlay can't be read
+     */
+    private BufferedImage opaqueshadow(BufferedImage bi, BufferedImage out, HashMap<String, String> arguments) throws IOException {
+        Path path = Paths.get(arguments.getOrDefault("overlay", DEFAULT_OVERLAY));
+        String modified = arguments.get("overlayModified");
+        long lastModified = modified != null ? Long.parseLong(modified) : OverlayCache.lastModified(path);
+
+        //On a thumbnail the overlay shrinks with the image, and loses what was cropped off it, so it covers the same part
+        Thumbnail thumbnail = Thumbnail.fromArguments(arguments);
+        String sourceSize = arguments.get(SOURCE_SIZE);
+        OverlayMask mask;
+        if (thumbnail != null && sourceSize != null) {
+            String[] size = sourceSize.split("x");
+            int sourceWidth = Integer.parseInt(size[0]);
+            int sourceHeight = Integer.parseInt(size[1]);
+            int[] scaled = thumbnail.scaledSize(sourceWidth, sourceHeight);
+            int[] output = thumbnail.outputSize(sourceWidth, sourceHeight);
+            mask = overlays.get(path, lastModified, (double) scaled[0] / sourceWidth, (double) scaled[1] / sourceHeight,
+                    (scaled[0] - output[0]) / 2, (scaled[1] - output[1]) / 2, bands);
+        } else {
+            mask = overlays.get(path, lastModified);
+        }
+
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+        if (mask.getWidth() > width || mask.getHeight() > height) {
+            return bi;
+        }
+
+        mask.darken(Pixels.data(bi), Pixels.data(out), width, height, bands);
+        return out;
+    }
+
     /**
      * 
      * This method is suppose to flip the image by flipping the bounds to negative numbers.
@@ -170,17 +804,16 @@ public class Processor {
         
         int height = bi.getHeight();
         int width = bi.getWidth();
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                Color pixel = new Color(bi.getRGB(x, y));
-                int r = pixel.getRed();
-                int b = pixel.getBlue();
-                int g = pixel.getGreen();
-                
-                Color temp = new Color(r,g,b);
-                out.setRGB((width - 1) - x, y, temp.getRGB());
+        int[] in = Pixels.data(bi);
+        int[] pixels = Pixels.data(out);
+        bands.forEachRow(width, height, (start, end) -> {
+            for (int y = start; y < end; y++) {
+                int row = y * width;
+                for (int x = 0; x < width; x++) {
+                    pixels[row + (width - 1) - x] = Pixels.OPAQUE | in[row + x];
+                }
             }
-        }
+        });
     }
     /*
     private BufferedImage arbitraryRotation(BufferedImage bi) {
@@ -230,19 +863,20 @@ public class Processor {
         int height = bi.getHeight();
         int width = bi.getWidth();
         
-        BufferedImage fun = new BufferedImage(height, width, BufferedImage.TYPE_INT_ARGB);
+        //The result is height wide and width tall
+        BufferedImage fun = Pixels.create(height, width);
+        int[] in = Pixels.data(bi);
+        int[] pixels = Pixels.data(fun);
         
-        for(int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                Color pixel = new Color(bi.getRGB(x, y));
-                int r = pixel.getRed();
-                int b = pixel.getBlue();
-                int g = pixel.getGreen();
-                
-                Color temp = new Color(r,g,b);
-                fun.setRGB((height - 1) - y, (width - 1) - x, temp.getRGB());
+        //Band over the output's rows so each band writes one contiguous block
+        bands.forEachRow(height, width, (start, end) -> {
+            for (int row = start; row < end; row++) {
+                int x = (width - 1) - row;
+                for (int y = 0; y < height; y++) {
+                    pixels[row * height + (height - 1) - y] = Pixels.OPAQUE | in[y * width + x];
+                }
             }
-        }
+        });
         return fun;
     }
     /**
@@ -252,29 +886,30 @@ public class Processor {
      * @param out The modified image
      */
     private void grayscale(BufferedImage bi, BufferedImage out) {
-        for (int y = 0; y < bi.getHeight(); y++) {
-            for (int x = 0; x < bi.getWidth(); x++) {
-                Color pixel = new Color(bi.getRGB(x, y));
-
-                int r = pixel.getRed();
-                int g = pixel.getGreen();
-                int b = pixel.getBlue();
-
-                //Set to grayscale
-                r = g;
-                b = g;
-
-                //Prevent an exception by keeping values within [0,255]
-                r = clamp255(r);
-                g = clamp255(g);
-                b = clamp255(b);
-
-                Color newColor = new Color(r, g, b);
+        int width = bi.getWidth();
+        int[] in = Pixels.data(bi);
+        int[] pixels = Pixels.data(out);
 
-                out.setRGB(x, y, newColor.getRGB());
+        bands.forEachRow(width, bi.getHeight(), (start, end) -> {
+            for (int i = start * width; i < end * width; i++) {
+                //Set to grayscale using the green channel
+                int g = Pixels.green(in[i]);
 
+                pixels[i] = Pixels.opaque(g, g, g);
             }
-        }
+        });
+    }
+
+    /**
+     * Report how well our caches are doing
+     *
+     * @return The cache counters as a JSON object
+     */
+    public String statsJson() {
+        return "{\"decoded\":" + decodedImages.statsJson() + ",\"results\":" + results.statsJson()
+                + ",\"pipelinePrefixes\":" + pipelinePrefixes.statsJson() + ",\"overlays\":" + overlays.statsJson()
+                + ",\"pyramids\":" + pyramids.statsJson()
+                + ",\"coalescedRequests\":" + inFlight.getCoalesced() + "}";
     }
 
     /**
@@ -283,7 +918,50 @@ public class Processor {
      * @return The list of commands we accept
      */
     public String[] validCommands() {
-        return new String[]{"edges", "histograms", "opaqueshadow", "reduceColor", "grayscale", "monochrome", "negateImage", "horizontalflip", "rotate"};
+        return operations.names();
+    }
+
+    /**
+     * The commands whose result is an image, for the plain command list the
+     * page puts a picture in its grid for
+     *
+     * @return The commands that don't answer with data
+     */
+    public String[] imageCommands() {
+        return operations.imageNames();
+    }
+
+    /**
+     * Describe every command we accept
+     *
+     * @return Each command's kind, output shape, cost and arguments as a JSON array
+     */
+    public String commandsJson() {
+        return operations.toJson();
+    }
+
+    /**
+     * What a command's result is
+     *
+     * @param command A valid command or pipeline
+     * @param arguments The arguments it was run with, whose format picks the image type
+     * @return The MIME type of what Process returns for it
+     */
+    public String contentType(String command, HashMap<String, String> arguments) {
+        if (answersWithData(command)) {
+            return "application/json";
+        }
+        return ImageEncoder.Format.fromArguments(arguments).getMimeType();
+    }
+
+    /**
+     * @param command A command or pipeline
+     * @return True if it answers with JSON rather than an image, so no image format applies to it
+     */
+    public boolean answersWithData(String command) {
+        //A pipeline's result is whatever its last stage makes
+        Operation[] stages = stages(command);
+        return stages != null && endsWithData(stages);
     }
 
     /**
@@ -325,59 +1003,18 @@ public class Processor {
      * @param out The modified image
      */
     private void monochrome(BufferedImage bi, BufferedImage out) {
-        int width = bi.getWidth();
-        int height = bi.getHeight();
-
-        //An array to store the error for each pixel so it can accumulate
-        int[][] error = new int[width][height];
-
-        for (int y = 0; y < height; y++) {
-
-            for (int x = 0; x < width; x++) {
-                Color pixel = new Color(bi.getRGB(x, y));
-
-                int r = pixel.getRed();
-                int g = pixel.getGreen();
-                int b = pixel.getBlue();
-
-                int grayscale = r + error[x][y];
-
-                int newgrayscale = 0;
-
-                if (grayscale > 128) {
-                    newgrayscale = 255;
-                } else {
-                    newgrayscale = 0;
-                }
-
-                int totalerror = grayscale - newgrayscale;
-
-                tryadd(error, totalerror / 2, width, height, x + 1, y);
-                tryadd(error, 3 * totalerror / 16, width, height, x + 1, y + 1);
-                tryadd(error, totalerror / 4, width, height, x, y + 1);
-                tryadd(error, totalerror / 16, width, height, x - 1, y + 1);
-
-                /**
-                 * if grayscale was 128, newgrayscale would be 0 So error would
-                 * be 128. So a positive error means the next pixel should be...
-                 */
-                r = newgrayscale;
-                g = newgrayscale;
-                b = newgrayscale;
-
-                //Prevent an exception by keeping values within [0,255]
-                r = clamp255(r);
-                g = clamp255(g);
-                b = clamp255(b);
-
-                Color newColor = new Color(r, g, b);
-
-                out.setRGB(x, y, newColor.getRGB());
-
-            }
-        }
+        //Dithering carries error from pixel to pixel, so it has its own engine
+        dithering.monochrome(Pixels.data(bi), Pixels.data(out), bi.getWidth(), bi.getHeight());
     }
 
+    /**
+     * Reduce the image to a small palette picked by k-means. The same image
+     * and arguments always give the same result.
+     *
+     * @param bi The original image
+     * @param out The reduced image
+     * @param arguments The request's arguments: maxColors (default 8), seed, and dither=true for Floyd-Steinberg
+     */
     private void reduceColor(BufferedImage bi, BufferedImage out, HashMap<String, String> arguments) {
 
         int width = bi.getWidth();
@@ -388,264 +1025,113 @@ public class Processor {
         if (arguments.containsKey("maxColors")) {
             maxColors = Integer.parseInt(arguments.get("maxColors"));
         }
-
-        HashMap<Color, Integer> hashMap = new HashMap<>();
-
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                Color pixel = new Color(bi.getRGB(x, y));
-
-                if (hashMap.containsKey(pixel)) {
-                    hashMap.put(pixel, hashMap.get(pixel).intValue() + 1);
-                } else {
-                    hashMap.put(pixel, 1);
-                }
-            }
-        }
-
-        List<ColorIntPair> pairs = new ArrayList<ColorIntPair>();
-
-        Collection<Color> keys = hashMap.keySet();
-
-        for (Color color : keys) {
-            int value = hashMap.get(color);
-
-            ColorIntPair cip = new ColorIntPair();
-            cip.color = color;
-            cip.count = value;
-            pairs.add(cip);
+        if (maxColors < 1 || maxColors > MAX_COLORS) {
+            throw new IllegalArgumentException("maxColors must be between 1 and " + MAX_COLORS);
         }
 
-        Collections.sort(pairs);
-        Collections.reverse(pairs);
-
-        List<Color> possibleColors = new ArrayList<Color>();
-
-        for (int i = 0; i < maxColors && i < pairs.size(); i++) {
-            possibleColors.add(randomColor());
+        long seed = REDUCE_COLOR_SEED;
+        if (arguments.containsKey("seed")) {
+            seed = Long.parseLong(arguments.get("seed"));
         }
 
-        for (int round = 0; round < 10; round++) {
-
-            List<List<ColorIntPair>> votingPairs = new ArrayList<List<ColorIntPair>>();
-
-            for (int i = 0; i < maxColors; i++) {
-                votingPairs.add(new ArrayList<ColorIntPair>());
-            }
-
-            for (ColorIntPair cip : pairs) {
-                //https://stackoverflow.com/questions/36775518/java-stream-find-an-element-with-a-min-max-value-of-an-attribute
-                Color closest = possibleColors.stream().reduce((a, b) -> L1Distance(a, cip.color) < L1Distance(b, cip.color) ? a : b).get();
-                votingPairs.get(possibleColors.indexOf(closest)).add(cip);
+        int[] in = Pixels.data(bi);
+        int[] pixels = Pixels.data(out);
 
-            }
-
-            //So now I have a list of each color pair and all the colors that were closest to that color and how many instances of that color I have
-            for (int i = 0; i < maxColors; i++) {
-                long r = 0, g = 0, b = 0, count = 0;
-
-                for (ColorIntPair cip : votingPairs.get(i)) {
-                    r += cip.color.getRed() * cip.count;
-                    g += cip.color.getGreen() * cip.count;
-                    b += cip.color.getBlue() * cip.count;
-                    count += cip.count;
-
-                }
-
-                if (count > 0) {
+        //Cluster the distinct colors rather than every pixel
+        KMeans kMeans = new KMeans(new ColorHistogram(in), maxColors, seed, REDUCE_COLOR_ROUNDS);
+        int[] palette = kMeans.palette();
 
-                    r /= count;
-                    g /= count;
-                    b /= count;
+        //Every pixel finds its palette color in a lookup cube instead of measuring them all
+        PaletteLookup lookup = new PaletteLookup(palette);
 
-                    r = clamp255((int) r);
-                    g = clamp255((int) g);
-                    b = clamp255((int) b);
-
-                    possibleColors.set(i, new Color((int) r, (int) g, (int) b));
-                } else {
-                    possibleColors.set(i, randomColor());
-                }
-            }
+        if ("true".equals(arguments.get("dither"))) {
+            dithering.palette(in, pixels, width, height, palette, lookup);
+            return;
         }
 
-        //An array to store the error for each pixel so it can accumulate
-        int[][] error = new int[width][height];
-
-        for (int y = 0; y < height; y++) {
-
-            for (int x = 0; x < width; x++) {
-                Color pixel = new Color(bi.getRGB(x, y));
-
-                int r = pixel.getRed();
-                int g = pixel.getGreen();
-                int b = pixel.getBlue();
-
-                Color closestColor = null;
-                float closestDistance = Float.MAX_VALUE;
-
-                /*for(int i = 0; i < possibleColors.length; i++)
-                {
-                    Color color = possibleColors[i];
-                }*/
-                //foreach
-                for (Color color : possibleColors) {
-                    float distance = getDistanceL1(new Color(r, g, b), color);
-                    if (distance < closestDistance) {
-                        closestDistance = distance;
-                        closestColor = color;
-                    }
-                }
-
-                r = closestColor.getRed();
-                g = closestColor.getGreen();
-                b = closestColor.getBlue();
-
-                /*int grayscale = r + error[x][y]; 
-                
-                int newgrayscale = 0;
-                                
-                if(grayscale > 128 )
-                    newgrayscale = 255;
-                else
-                    newgrayscale = 0;
-                
-                int totalerror = grayscale - newgrayscale;
-                
-                tryadd(error, totalerror/2, width, height, x+1, y);
-                tryadd(error, 3*totalerror/16, width, height, x+1, y+1);
-                tryadd(error, totalerror/4, width, height, x, y+1);
-                tryadd(error, totalerror/16, width, height, x-1, y+1);
-                
-               
-                
-                
-                
-                
-                
-                r = newgrayscale;
-                g = newgrayscale;
-                b = newgrayscale;*/
-                //Prevent an exception by keeping values within [0,255]
-                r = clamp255(r);
-                g = clamp255(g);
-                b = clamp255(b);
-
-                Color newColor = new Color(r, g, b);
-
-                out.setRGB(x, y, newColor.getRGB());
-
+        bands.forEachRow(width, height, (start, end) -> {
+            for (int i = start * width; i < end * width; i++) {
+                pixels[i] = palette[lookup.nearest(in[i])];
             }
-        }
+        });
     }
 
     /**
-     * Try to add a value to an array if the x and y values are valid
+     * Convolve the image like edges does, then draw how bright each row and
+     * column is in a margin along the left and top
      *
-     * @param error The array to add to
-     * @param remainingError The value to add
-     * @param width The length of the first dimension
-     * @param height The length of the second dimension
-     * @param x The index of the first dimension
-     * @param y The index of the second dimension
-     * @return True of a value was update, false otherwise
-     */
-    private boolean tryadd(int[][] error, int remainingError, int width, int height, int x, int y) {
-        if (x < 0 || x >= width) {
-            return false;
-        }
-        if (y < 0 || y >= height) {
-            return false;
-        }
-
-        error[x][y] += remainingError;
-
-        return true;
-
-    }
-
-    private float getDistanceL1(Color color, Color color0) {
-        return Math.abs(color.getRed() - color0.getRed())
-                + Math.abs(color.getGreen() - color0.getGreen())
-                + Math.abs(color.getBlue() - color0.getBlue());
-
-    }
-
-    private BufferedImage histograms(BufferedImage bi) {
-
-        BufferedImage convolution = new BufferedImage(bi.getWidth(), bi.getHeight(), BufferedImage.TYPE_INT_ARGB);
+     * @param bi The original image
+     * @param arguments The request's arguments, the same as edges takes
+     * @return The convolved image with its margins
+     */
+    private BufferedImage histograms(BufferedImage bi, HashMap<String, String> arguments) {
 
-        edges(bi, convolution);
+        BufferedImage convolution = Pixels.create(bi.getWidth(), bi.getHeight());
 
-        bi = convolution;
+        edges(bi, convolution, arguments);
 
         int marginSize = 20;
         int height = bi.getHeight();
         int width = bi.getWidth();
+        int[] pixels = Pixels.data(convolution);
 
-        BufferedImage withMargins = new BufferedImage(bi.getWidth() + 20, bi.getHeight() + 20, BufferedImage.TYPE_INT_ARGB);
-
-        Graphics graphics = withMargins.getGraphics();
-
-        graphics.setColor(Color.BLACK);
-        graphics.fillRect(0, 0, withMargins.getWidth(), withMargins.getHeight());
-
-        graphics.drawImage(bi, marginSize, marginSize, null);
-
-        //Create the histograms of brightness histogram
+        //The row and column sums both come out of one pass over the pixels
+        ImageProfile profile = new ImageProfile(pixels, width, height, bands);
+        int[] rowBars = new int[height];
+        int[] columnBars = new int[width];
         for (int y = 0; y < height; y++) {
-
-            int sum = 0;
-            for (int x = 0; x < width; x++) {
-
-                Color pixel = new Color(bi.getRGB(x, y));
-                int r = pixel.getRed();
-                int g = pixel.getGreen();
-                int b = pixel.getBlue();
-
-                int grayscale = (int) (r * .3 + g * .4 + b * .3);
-                sum += grayscale;
-
-            }
-
-            int marginAmount = (int) (sum / (width * 255.0) * marginSize);
-            graphics.setColor(Color.WHITE);
-            graphics.drawLine(0, marginSize + y, marginAmount, marginSize + y);
-
+            rowBars[y] = (int) (profile.getRows()[y] / (width * 255.0) * marginSize);
         }
-
         for (int x = 0; x < width; x++) {
-            int sum = 0;
-            for (int y = 0; y < height; y++) {
+            columnBars[x] = (int) (profile.getColumns()[x] / (height * 255.0) * marginSize);
+        }
 
-                Color pixel = new Color(bi.getRGB(x, y));
-                int r = pixel.getRed();
-                int g = pixel.getGreen();
-                int b = pixel.getBlue();
+        //The margins are as wide as they always were, so the right and bottom edges are cut off by the same amount
+        int outWidth = width + 20;
+        int outHeight = height + 20;
+        BufferedImage withMargins = Pixels.create(outWidth, outHeight);
+        int[] margins = Pixels.data(withMargins);
+        int white = Pixels.opaque(255, 255, 255);
+
+        bands.forEachRow(outWidth, outHeight, (start, end) -> {
+            for (int y = start; y < end; y++) {
+                int row = y * outWidth;
+                Arrays.fill(margins, row, row + outWidth, Pixels.OPAQUE);
+
+                //The convolved image, offset into the corner
+                int imageY = y - marginSize;
+                if (imageY >= 0) {
+                    for (int x = marginSize; x < outWidth; x++) {
+                        margins[row + x] = Pixels.OPAQUE | pixels[imageY * width + x - marginSize];
+                    }
 
-                int grayscale = (int) (r * .3 + g * .4 + b * .3);
-                sum += grayscale;
+                    //This row's bar, which includes its last pixel
+                    Arrays.fill(margins, row, row + rowBars[imageY] + 1, white);
+                }
 
+                //Every column's bar that reaches down this far
+                for (int x = 0; x < width; x++) {
+                    if (y <= columnBars[x]) {
+                        margins[row + marginSize + x] = white;
+                    }
+                }
             }
-
-            int marginAmount = (int) (sum / (height * 255.0) * marginSize);
-            graphics.setColor(Color.WHITE);
-            graphics.drawLine(marginSize + x, 0, marginSize + x, marginAmount);
-
-        }
-
-        graphics.dispose();
+        });
 
         return withMargins;
 
     }
 
-    private Color randomColor() {
-        return new Color((int) (Math.random() * 255), (int) (Math.random() * 255), (int) (Math.random() * 255));
-    }
-
-    private int L1Distance(Color pc, Color color) {
-        return Math.abs(pc.getRed() - color.getRed()) + Math.abs(pc.getGreen() - color.getGreen()) + Math.abs(pc.getBlue() - color.getBlue());
+    /**
+     * Profile the image for the histogram command: how many pixels have each
+     * red, green and blue value, and how bright each row and column is
+     *
+     * @param bi The original image
+     * @return The profile as compact JSON
+     */
+    private String histogram(BufferedImage bi) {
+        ImageProfile profile = new ImageProfile(Pixels.data(bi), bi.getWidth(), bi.getHeight(), bands);
+        return profile.toJson();
     }
 
     /*
@@ -690,97 +1176,40 @@ public class Processor {
         }
     }
 
-    private void edges(BufferedImage bi, BufferedImage out) {
-
-        int kernelWidth = 5;
-
-        float[][] kernel = new float[kernelWidth][kernelWidth];
-
-//        kernel[0][0] = -1; kernel[1][0] = -1; kernel[2][0] = -1; //Identity kernel
-//        kernel[0][1] = -1; kernel[1][1] = 8; kernel[2][1] = -1; //Identity kernel
-//        kernel[0][2] = -1; kernel[1][2] = -1; kernel[2][2] = -1; //Identity kernel
-//        kernel[0][0] = 0; kernel[1][0] = 0; kernel[2][0] = 0; //Identity kernel
-//        kernel[0][1] = 0; kernel[1][1] = 1f; kernel[2][1] = 0f; //Identity kernel
-//        kernel[0][2] = 0; kernel[1][2] = 0f; kernel[2][2] = 0; //Identity kernel
-//        
-//        float kernelCoefficient = .1f;
-//        
-//        kernel[0][0] += -1 * kernelCoefficient; kernel[1][0] += -1 * kernelCoefficient; kernel[2][0] += -1 * kernelCoefficient; //Identity kernel
-//        kernel[0][1] += -1 * kernelCoefficient; kernel[1][1] += 8 * kernelCoefficient; kernel[2][1] += -1 * kernelCoefficient; //Identity kernel
-//        kernel[0][2] += -1 * kernelCoefficient; kernel[1][2] += -1 * kernelCoefficient; kernel[2][2] += -1 * kernelCoefficient;        
-//        
-//3 -> 1, 5 -> 2, 7 -> 3
-        //IdentityKernel(kernelWidth, kernel);
-        
-        BoxBlur(kernelWidth, kernel);
-
-        for (int y = kernelWidth/2; y < bi.getHeight() - kernelWidth/2; y++) {
-            for (int x = kernelWidth/2; x < bi.getWidth() - kernelWidth/2; x++) {
-                //Color pixel = new Color(bi.getRGB(x, y));
-
-                float r = 0;
-                float g = 0;
-                float b = 0;
-
-                for (int yk = 0; yk <= kernelWidth - 1; yk++) {
-                    for (int xk = 0; xk <= kernelWidth - 1; xk++) {
-
-                        Color nextPixel = new Color(bi.getRGB(x + xk - kernelWidth/2, y + yk - kernelWidth/2));
-
-                        float coefficient = kernel[xk][yk];
-
-                        r += nextPixel.getRed() * coefficient;
-                        g += nextPixel.getGreen() * coefficient;
-                        b += nextPixel.getBlue() * coefficient;
-                    }
-                }
+    /**
+     * Convolve the image with the kernel the request asked for, a 5x5 box
+     * blur if it didn't ask
+     *
+     * @param bi The original image
+     * @param out The convolved image
+     * @param arguments The request's arguments: kernel, radius and border
+     */
+    private void edges(BufferedImage bi, BufferedImage out, HashMap<String, String> arguments) {
+        //The kernel, its radius and how to treat the border all come from the request
+        Kernel kernel = Kernel.fromArguments(arguments);
+        Convolution.Border border = Convolution.Border.fromArguments(arguments);
 
-                //Prevent an exception by keeping values within [0,255]
-                r = abs255(r);
-                g = abs255(g);
-                b = abs255(b);
+        convolution.convolve(Pixels.data(bi), Pixels.data(out), bi.getWidth(), bi.getHeight(), kernel, border);
+    }
 
-                Color newColor = new Color((int) r, (int) g, (int) b);
+    /**
+     * One trip over the image: a command, or point commands folded together
+     */
+    private static class Pass {
 
-                out.setRGB(x, y, newColor.getRGB());
+        /** The command to run, or null if this runs fused */
+        private final Operation operation;
 
-            }
-        }
-    }
+        /** The folded point commands, or null if this runs command */
+        private final PointOp fused;
 
-    private void BoxBlur(int kernelWidth, float[][] kernel) {
-        for (int yk = 0; yk <= kernelWidth - 1; yk++) {
-            for (int xk = 0; xk <= kernelWidth - 1; xk++) {
-                
-                
-                kernel[xk][yk] = 1.0f/(kernelWidth * kernelWidth);
-                
-                
-            }
-            
-        }
-    }
+        /** How many of the pipeline's stages are done once this pass is, or -1 if they aren't a start of it */
+        private final int stagesDone;
 
-    private void IdentityKernel(int kernelWidth, float[][] kernel) {
-        //Box blur across 5x5 = 25 values, each cell = 1/25
-        for (int yk = 0; yk <= kernelWidth - 1; yk++) {
-            for (int xk = 0; xk <= kernelWidth - 1; xk++) {
-                
-                int middleIndex = kernelWidth / 2;
-                
-                if (yk == middleIndex && xk == middleIndex) {
-                    kernel[xk][yk] = 1;
-                } else {
-                    kernel[xk][yk] = 0;
-                }
-                
-            }
-            
+        Pass(Operation operation, PointOp fused, int stagesDone) {
+            this.operation = operation;
+            this.fused = fused;
+            this.stagesDone = stagesDone;
         }
     }
-
-    private int abs255(float color) {
-        return clamp255((int) Math.abs(color));
-    }
-
 }
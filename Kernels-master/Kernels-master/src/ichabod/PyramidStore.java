@@ -0,0 +1,497 @@
+package ichabod;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.imageio.ImageIO;
+
+/**
+ * Keeps a mip-map pyramid next to every image we serve: the image at 1/2,
+ * 1/4, 1/8 and so on of its size, each level the box average of the one
+ * above. A small view then starts from the nearest level instead of
+ * decoding the original, so big originals stop setting the latency of
+ * thumbnails.
+ *
+ * Pyramids are built in the background when the image index first sees an
+ * image and again whenever it changes, and written to a hidden sidecar file,
+ * .name.pyramid, so they survive restarts. The sidecar is a small header
+ * followed by each level's pixels, deflated on their own so one level can be
+ * read without the others. Like PNG, each level is stored as RGB bytes, or
+ * ARGB if it isn't opaque, and each byte as its difference from the one
+ * above it, which photos deflate far better:
+ *
+ * <pre>
+ * int magic, int version, long source modified time, int source width, int source height, int levels
+ * levels x (int width, int height, int channels, long offset, int length)
+ * the deflated levels, largest first
+ * </pre>
+ */
+public class PyramidStore {
+
+    /** The first bytes of every sidecar: ICHP */
+    private static final int MAGIC = 0x49434850;
+
+    /** The sidecar layout we write */
+    private static final int VERSION = 1;
+
+    /** The size of the header before the levels' entries */
+    private static final int HEADER_BYTES = 28;
+
+    /** The size of each level's entry in the header */
+    private static final long LEVEL_BYTES = 24;
+
+    /** The store everyone shares */
+    private static PyramidStore shared;
+
+    /** False to never build or use pyramids */
+    private final boolean enabled;
+
+    /** Levels stop once neither side is bigger than this */
+    private final int minSize;
+
+    /** Builds pyramids one at a time, behind the requests */
+    private final ExecutorService builder;
+
+    /** The sidecar headers we've read or written, by source path */
+    private final ConcurrentHashMap<String, Header> headers = new ConcurrentHashMap<>();
+
+    /** How many pyramids we built */
+    private final AtomicLong builds = new AtomicLong();
+
+    /** How many levels we read from sidecars */
+    private final AtomicLong levelReads = new AtomicLong();
+
+    /**
+     * Create a store
+     *
+     * @param enabled False to never build or use pyramids
+     * @param minSize Levels stop once neither side is bigger than this
+     */
+    public PyramidStore(boolean enabled, int minSize) {
+        this.enabled = enabled;
+        this.minSize = Math.max(1, minSize);
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "ichabod-pyramids");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        this.builder = executor;
+    }
+
+    /**
+     * Build a store from the -Dichabod.* system properties
+     *
+     * @return A store configured from the command line
+     */
+    public static PyramidStore fromSystemProperties() {
+        return new PyramidStore(Boolean.parseBoolean(System.getProperty("ichabod.pyramids", "true")),
+                Integer.getInteger("ichabod.pyramidMinSize", 64));
+    }
+
+    /**
+     * Get the store everyone shares
+     *
+     * @return The shared store
+     */
+    public static synchronized PyramidStore shared() {
+        if (shared == null) {
+            shared = fromSystemProperties();
+        }
+        return shared;
+    }
+
+    /**
+     * Keep a pyramid for every image in an index, now and as they change
+     *
+     * @param index The images
+     */
+    public void watch(ImageIndex index) {
+        if (enabled) {
+            index.addListener(this::update);
+        }
+    }
+
+    /**
+     * Make sure an image's pyramid is up to date, building it in the background if it isn't
+     *
+     * @param info The image
+     */
+    private void update(ImageIndex.ImageInfo info) {
+        if (info.getWidth() <= minSize && info.getHeight() <= minSize) {
+            return; //Too small to need one
+        }
+        builder.execute(() -> {
+            try {
+                Path path = info.getPath();
+                long lastModified = Files.getLastModifiedTime(path).toMillis();
+                if (header(path, lastModified) == null) {
+                    build(path, lastModified);
+                }
+            } catch (IOException ex) {
+                //Probably being written or deleted; we'll hear about it again
+                Logger.getLogger(PyramidStore.class.getName()).log(Level.FINE, "Couldn't build a pyramid for " + info.getPath(), ex);
+            }
+        });
+    }
+
+    /**
+     * Find the smallest level that still has at least the given size
+     *
+     * @param path The source image
+     * @param lastModified When the source was last modified, in milliseconds
+     * @param width The width needed
+     * @param height The height needed
+     * @return The level, 1 for half size and so on, or 0 if no level is big enough or there's no pyramid for this version
+     */
+    public int levelFor(Path path, long lastModified, int width, int height) {
+        Header header = enabled ? header(path, lastModified) : null;
+        if (header == null) {
+            return 0;
+        }
+        int level = 0;
+        while (level < header.widths.length && header.widths[level] >= width && header.heights[level] >= height) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Read one level of a pyramid
+     *
+     * @param path The source image
+     * @param lastModified When the source was last modified, in milliseconds
+     * @param level The level from levelFor(), at least 1
+     * @return The level as a new image, or null if the pyramid is gone or out of date
+     * @throws IOException If the sidecar can't be read
+     */
+    public BufferedImage read(Path path, long lastModified, int level) throws IOException {
+        Header header = header(path, lastModified);
+        if (header == null || level < 1 || level > header.widths.length) {
+            return null;
+        }
+        int i = level - 1;
+        byte[] compressed = new byte[header.lengths[i]];
+        try (FileChannel channel = FileChannel.open(sidecar(path), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(compressed);
+            long position = header.offsets[i];
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    return null; //Cut short; the next build will fix it
+                }
+                position += read;
+            }
+        }
+
+        int width = header.widths[i];
+        int height = header.heights[i];
+        int channels = header.channels[i];
+        byte[] raw = new byte[width * height * channels];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            if (inflater.inflate(raw) != raw.length) {
+                return null;
+            }
+        } catch (DataFormatException ex) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+
+        //Undo the up filter, then unpack
+        int stride = width * channels;
+        for (int j = stride; j < raw.length; j++) {
+            raw[j] += raw[j - stride];
+        }
+        BufferedImage image = Pixels.create(width, height);
+        int[] pixels = Pixels.data(image);
+        for (int p = 0, j = 0; p < pixels.length; p++) {
+            int alpha = channels == 4 ? raw[j++] & 0xFF : 0xFF;
+            pixels[p] = alpha << 24 | (raw[j] & 0xFF) << 16 | (raw[j + 1] & 0xFF) << 8 | (raw[j + 2] & 0xFF);
+            j += 3;
+        }
+        levelReads.incrementAndGet();
+        return image;
+    }
+
+    /**
+     * Get the header of an image's sidecar, if it's for this version of the image
+     *
+     * @param path The source image
+     * @param lastModified When the source was last modified, in milliseconds
+     * @return The header, or null if there's no sidecar for this version
+     */
+    private Header header(Path path, long lastModified) {
+        String key = path.toAbsolutePath().normalize().toString();
+        Header header = headers.get(key);
+        if (header == null || header.lastModified != lastModified) {
+            header = readHeader(sidecar(path));
+            if (header == null) {
+                return null;
+            }
+            headers.put(key, header);
+        }
+        return header.lastModified == lastModified ? header : null;
+    }
+
+    /**
+     * @param sidecar A sidecar file
+     * @return Its header, or null if it's missing or not one of ours
+     */
+    private static Header readHeader(Path sidecar) {
+        if (!Files.isRegularFile(sidecar)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(sidecar))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            long lastModified = in.readLong();
+            in.readInt();
+            in.readInt();
+            int levels = in.readInt();
+            if (levels < 0 || levels > 32) {
+                return null;
+            }
+            Header header = new Header(lastModified, levels);
+            for (int i = 0; i < levels; i++) {
+                header.widths[i] = in.readInt();
+                header.heights[i] = in.readInt();
+                header.channels[i] = in.readInt();
+                if (header.channels[i] != 3 && header.channels[i] != 4) {
+                    return null;
+                }
+                header.offsets[i] = in.readLong();
+                header.lengths[i] = in.readInt();
+            }
+            return header;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Decode an image, halve it until it's small and write the levels next to it
+     *
+     * @param path The source image
+     * @param lastModified When it was last modified, in milliseconds
+     * @throws IOException If it can't be read or the sidecar can't be written
+     */
+    private void build(Path path, long lastModified) throws IOException {
+        BufferedImage source = ImageIO.read(path.toFile());
+        if (source == null) {
+            return;
+        }
+        source = Pixels.toArgb(source);
+
+        //Halve until it's small, deflating each level as we go
+        List<int[]> shapes = new ArrayList<>();
+        List<byte[]> levels = new ArrayList<>();
+        BufferedImage level = source;
+        while (level.getWidth() > minSize || level.getHeight() > minSize) {
+            level = halve(level);
+            int channels = isOpaque(Pixels.data(level)) ? 3 : 4;
+            shapes.add(new int[]{level.getWidth(), level.getHeight(), channels});
+            levels.add(encode(Pixels.data(level), level.getWidth(), channels));
+        }
+
+        int count = levels.size();
+        Header header = new Header(lastModified, count);
+        long offset = HEADER_BYTES + LEVEL_BYTES * count;
+        for (int i = 0; i < count; i++) {
+            header.widths[i] = shapes.get(i)[0];
+            header.heights[i] = shapes.get(i)[1];
+            header.channels[i] = shapes.get(i)[2];
+            header.offsets[i] = offset;
+            header.lengths[i] = levels.get(i).length;
+            offset += levels.get(i).length;
+        }
+
+        //Write it beside the real one and swap it in, so readers never see half a file
+        Path sidecar = sidecar(path);
+        Path temp = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(lastModified);
+            out.writeInt(source.getWidth());
+            out.writeInt(source.getHeight());
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeInt(header.widths[i]);
+                out.writeInt(header.heights[i]);
+                out.writeInt(header.channels[i]);
+                out.writeLong(header.offsets[i]);
+                out.writeInt(header.lengths[i]);
+            }
+            for (byte[] bytes : levels) {
+                out.write(bytes);
+            }
+        }
+        Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        headers.put(path.toAbsolutePath().normalize().toString(), header);
+        builds.incrementAndGet();
+    }
+
+    /**
+     * Shrink an image to half its size, averaging each 2x2 block. An odd last
+     * row or column is averaged with itself.
+     *
+     * @param image The image
+     * @return A new image, rounded up to whole pixels
+     */
+    static BufferedImage halve(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int halfWidth = (width + 1) / 2;
+        int halfHeight = (height + 1) / 2;
+        BufferedImage half = Pixels.create(halfWidth, halfHeight);
+        int[] in = Pixels.data(image);
+        int[] out = Pixels.data(half);
+
+        for (int y = 0; y < halfHeight; y++) {
+            int top = 2 * y * width;
+            int bottom = Math.min(2 * y + 1, height - 1) * width;
+            for (int x = 0; x < halfWidth; x++) {
+                int left = 2 * x;
+                int right = Math.min(2 * x + 1, width - 1);
+                int p0 = in[top + left];
+                int p1 = in[top + right];
+                int p2 = in[bottom + left];
+                int p3 = in[bottom + right];
+
+                //Average each channel's four values, rounding to nearest
+                int a = ((p0 >>> 24) + (p1 >>> 24) + (p2 >>> 24) + (p3 >>> 24) + 2) >> 2;
+                int r = (Pixels.red(p0) + Pixels.red(p1) + Pixels.red(p2) + Pixels.red(p3) + 2) >> 2;
+                int g = (Pixels.green(p0) + Pixels.green(p1) + Pixels.green(p2) + Pixels.green(p3) + 2) >> 2;
+                int b = (Pixels.blue(p0) + Pixels.blue(p1) + Pixels.blue(p2) + Pixels.blue(p3) + 2) >> 2;
+                out[y * halfWidth + x] = a << 24 | r << 16 | g << 8 | b;
+            }
+        }
+        return half;
+    }
+
+    /**
+     * @param pixels Packed ARGB pixels
+     * @return True if every one is fully opaque
+     */
+    private static boolean isOpaque(int[] pixels) {
+        for (int pixel : pixels) {
+            if (pixel >>> 24 != 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Store a level's pixels the way the sidecar holds them
+     *
+     * @param pixels Packed ARGB pixels
+     * @param width The level's width
+     * @param channels 3 to leave out alpha, 4 to keep it
+     * @return The bytes, up-filtered and deflated
+     */
+    private static byte[] encode(int[] pixels, int width, int channels) {
+        byte[] raw = new byte[pixels.length * channels];
+        for (int p = 0, j = 0; p < pixels.length; p++) {
+            int pixel = pixels[p];
+            if (channels == 4) {
+                raw[j++] = (byte) (pixel >>> 24);
+            }
+            raw[j++] = (byte) (pixel >> 16);
+            raw[j++] = (byte) (pixel >> 8);
+            raw[j++] = (byte) pixel;
+        }
+
+        //Take each byte from the one above it, working up so every row still sees the original above
+        int stride = width * channels;
+        for (int j = raw.length - 1; j >= stride; j--) {
+            raw[j] -= raw[j - stride];
+        }
+
+        //Pyramids are built in the background and read many times, so it's worth deflating hard
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2);
+            byte[] chunk = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param path A source image
+     * @return Where its pyramid is kept: .name.pyramid in the same directory
+     */
+    static Path sidecar(Path path) {
+        return path.resolveSibling("." + path.getFileName() + ".pyramid");
+    }
+
+    /**
+     * @return The store's counters as a JSON object
+     */
+    public String statsJson() {
+        return "{\"enabled\":" + enabled + ",\"known\":" + headers.size() + ",\"builds\":" + builds.get()
+                + ",\"levelReads\":" + levelReads.get() + "}";
+    }
+
+    /**
+     * Where each level of a sidecar is, and which version of the source it's for
+     */
+    private static class Header {
+
+        private final long lastModified;
+
+        private final int[] widths;
+
+        private final int[] heights;
+
+        private final int[] channels;
+
+        private final long[] offsets;
+
+        private final int[] lengths;
+
+        Header(long lastModified, int levels) {
+            this.lastModified = lastModified;
+            this.widths = new int[levels];
+            this.heights = new int[levels];
+            this.channels = new int[levels];
+            this.offsets = new long[levels];
+            this.lengths = new int[levels];
+        }
+    }
+}
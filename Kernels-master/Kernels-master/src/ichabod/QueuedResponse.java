@@ -0,0 +1,256 @@
+package ichabod;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A response rendered by a worker for the selector front end. Bytes written to
+ * it are kept in memory, but files are only remembered so the selector can send
+ * them straight from disk with transferTo (sendfile) once the client is ready.
+ *
+ * Most responses are complete before the selector sees them. A streamed one
+ * is handed over as soon as it starts and sent as the worker adds to it, and
+ * the worker can tell if the client went away in the meantime. The worker and
+ * the selector share it, so everything that touches the parts is synchronized.
+ */
+class QueuedResponse extends OutputStream {
+
+    /** The parts of the response, in order. Each is a ByteBuffer or a FileRegion. */
+    private final ArrayDeque<Object> parts = new ArrayDeque<>();
+
+    /** Bytes written since the last file */
+    private ByteArrayOutputStream current = new ByteArrayOutputStream();
+
+    /** Tells the selector there's more to send, or null if this response can't be streamed */
+    private Runnable wakeup;
+
+    /** True while a streamed response is still being added to */
+    private boolean open;
+
+    /** True once the selector has started sending a streamed response */
+    private boolean started;
+
+    /** True once the connection is gone */
+    private volatile boolean closed;
+
+    @Override
+    public synchronized void write(int b) {
+        current.write(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length) {
+        current.write(bytes, offset, length);
+    }
+
+    /**
+     * Let the response be streamed
+     *
+     * @param wakeup Run whenever there's more to send; it must hand the response to the selector
+     */
+    void setWakeup(Runnable wakeup) {
+        this.wakeup = wakeup;
+    }
+
+    /**
+     * Start sending what's been written so far while the rest is still being
+     * made. Does nothing if the response can't be streamed.
+     *
+     * @return True if the response is now streaming
+     */
+    synchronized boolean startStreaming() {
+        if (wakeup == null) {
+            return false;
+        }
+        open = true;
+        return true;
+    }
+
+    /**
+     * Send what's been added so far, if the response is streaming
+     */
+    @Override
+    public void flush() {
+        Runnable toRun;
+        synchronized (this) {
+            cutBytes();
+            toRun = open ? wakeup : null;
+        }
+        if (toRun != null) {
+            toRun.run();
+        }
+    }
+
+    /**
+     * Mark a streamed response complete, so the selector knows when it's done
+     */
+    void finishStreaming() {
+        Runnable toRun;
+        synchronized (this) {
+            cutBytes();
+            toRun = open ? wakeup : null;
+            open = false;
+        }
+        if (toRun != null) {
+            toRun.run();
+        }
+    }
+
+    /**
+     * @return True if the client went away before we finished
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Note that the selector has the response in its queue. Only called on the selector thread.
+     *
+     * @return False if it already did
+     */
+    boolean markStarted() {
+        boolean first = !started;
+        started = true;
+        return first;
+    }
+
+    /**
+     * @return True if everything added so far has been sent but more is coming
+     */
+    synchronized boolean isWaiting() {
+        return open && parts.isEmpty() && current.size() == 0;
+    }
+
+    /**
+     * Add bytes to the response without copying them. The array must not
+     * change afterwards.
+     *
+     * @param bytes The bytes to send
+     */
+    synchronized void addBytes(byte[] bytes) {
+        cutBytes();
+        parts.add(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Add part of a file to the response. The response owns the file from now
+     * on and closes it once it has been sent.
+     *
+     * @param file The file to send
+     * @param position Where in the file to start
+     * @param count How many bytes to send
+     */
+    synchronized void addFile(FileChannel file, long position, long count) {
+        cutBytes();
+        parts.add(new FileRegion(file, position, count));
+    }
+
+    /**
+     * Turn the bytes written so far into a part of their own
+     */
+    private void cutBytes() {
+        if (current.size() > 0) {
+            parts.add(ByteBuffer.wrap(current.toByteArray()));
+            current = new ByteArrayOutputStream();
+        }
+    }
+
+    /**
+     * Send as much of the response as the channel will take without blocking
+     *
+     * @param channel The client
+     * @return True if the whole response has been sent, false if the socket
+     * is full or a streamed response has nothing more to send yet
+     * @throws IOException If the write fails
+     */
+    synchronized boolean writeTo(WritableByteChannel channel) throws IOException {
+        cutBytes();
+        while (!parts.isEmpty()) {
+            Object part = parts.peek();
+            if (part instanceof ByteBuffer) {
+                ByteBuffer buffer = (ByteBuffer) part;
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return false; //The socket is full
+                }
+            } else {
+                FileRegion region = (FileRegion) part;
+                if (!region.transferTo(channel)) {
+                    return false;
+                }
+                region.close();
+            }
+            parts.poll();
+        }
+        return !open;
+    }
+
+    /**
+     * Give back any files we didn't get to send, e.g., because the client went away
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Object part : parts) {
+            if (part instanceof FileRegion) {
+                ((FileRegion) part).close();
+            }
+        }
+        parts.clear();
+    }
+
+    /**
+     * A piece of a file that still has to be sent
+     */
+    private static class FileRegion {
+
+        /** The open file */
+        private final FileChannel file;
+
+        /** The next byte to send */
+        private long position;
+
+        /** How many bytes are left */
+        private long remaining;
+
+        FileRegion(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        /**
+         * Send as much of the region as the channel will take
+         *
+         * @param channel The client
+         * @return True if the whole region has been sent
+         * @throws IOException If the transfer fails
+         */
+        boolean transferTo(WritableByteChannel channel) throws IOException {
+            while (remaining > 0) {
+                long sent = file.transferTo(position, remaining, channel);
+                if (sent <= 0) {
+                    return false;
+                }
+                position += sent;
+                remaining -= sent;
+            }
+            return true;
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException ex) {
+                Logger.getLogger(QueuedResponse.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package ichabod;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the encoded output of commands so a repeat request is answered
+ * without decoding, processing or encoding anything. Results are keyed by the
+ * command, the image, the image's modified time and the other arguments, so an
+ * edited image or a different argument is a different result.
+ *
+ * Memory is bounded in bytes and evicts either the least recently used or the
+ * least frequently used result. Optionally every result is also written to a
+ * directory on disk, which is checked when memory misses and survives restarts.
+ * Results on disk are kept in a subdirectory named for the build that made
+ * them, since a new build can make different bytes for the same request, and
+ * whatever older builds left behind is deleted at startup.
+ *
+ * The arrays we hand out are shared, so callers must not change them.
+ */
+public class ResultCache {
+
+    /** How we pick a result to drop when memory is full */
+    public enum Policy {
+        /** Drop the result that was used longest ago */
+        LRU,
+        /** Drop the result that has been used the fewest times */
+        LFU
+    }
+
+    /** The most bytes of results we keep in memory */
+    private final long maxBytes;
+
+    /** How we pick a result to drop */
+    private final Policy policy;
+
+    /** Bump when the files on disk change layout */
+    private static final int DISK_FORMAT = 1;
+
+    /** The directories buildStamp() names */
+    private static final Pattern BUILD_NAME = Pattern.compile("v\\d+-([0-9a-f]{16}|unknown)");
+
+    /** The files fileName() and put() write */
+    private static final Pattern RESULT_NAME = Pattern.compile("[0-9a-f]{64}\\.bin|result\\d+\\.tmp");
+
+    /** Where the disk tier lives for this build, or null if there isn't one */
+    private final Path diskDirectory;
+
+    /** The most bytes we keep on disk */
+    private final long maxDiskBytes;
+
+    /** The results in memory, oldest access first */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    /** The bytes currently held in memory */
+    private long currentBytes;
+
+    /** The bytes currently on disk */
+    private long diskBytes;
+
+    /** True while a thread is deleting old files from disk */
+    private boolean trimming;
+
+    /** Lookups answered from memory */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Lookups answered from disk */
+    private final AtomicLong diskHits = new AtomicLong();
+
+    /** Lookups we couldn't answer */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Results dropped from memory to stay under budget */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create a cache
+     *
+     * @param maxBytes The most bytes to keep in memory
+     * @param policy How to pick a result to drop
+     * @param diskDirectory Where to keep results on disk, or null for memory only
+     * @param maxDiskBytes The most bytes to keep on disk
+     */
+    public ResultCache(long maxBytes, Policy policy, Path diskDirectory, long maxDiskBytes) {
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.diskDirectory = diskDirectory == null ? null : diskDirectory.resolve("v" + DISK_FORMAT + "-" + buildStamp());
+        this.maxDiskBytes = maxDiskBytes;
+
+        if (diskDirectory != null) {
+            try {
+                Files.createDirectories(this.diskDirectory);
+                deleteOtherBuilds(diskDirectory);
+                diskBytes = trimDisk(Long.MAX_VALUE);
+            } catch (IOException ex) {
+                Logger.getLogger(ResultCache.class.getName()).log(Level.WARNING, "Can't use " + diskDirectory, ex);
+            }
+        }
+    }
+
+    /**
+     * Name the build we're running, so results from another one aren't served
+     *
+     * @return A hex digest of our classes, or "unknown" if we can't find them
+     */
+    static String buildStamp() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            Path code = Paths.get(ResultCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            if (Files.isDirectory(code)) {
+                //Running from the classes directory, e.g., in the IDE
+                List<Path> classes = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(code.resolve("ichabod"), "*.class")) {
+                    stream.forEach(classes::add);
+                }
+                classes.sort(null);
+                for (Path file : classes) {
+                    digest.update(file.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+                    digest.update(Files.readAllBytes(file));
+                }
+            } else {
+                digest.update(Files.readAllBytes(code));
+            }
+            StringBuilder stamp = new StringBuilder();
+            for (byte b : Arrays.copyOf(digest.digest(), 8)) {
+                stamp.append(String.format("%02x", b));
+            }
+            return stamp.toString();
+        } catch (IOException | URISyntaxException | NoSuchAlgorithmException | RuntimeException ex) {
+            Logger.getLogger(ResultCache.class.getName()).log(Level.WARNING, "Can't tell which build this is", ex);
+            return "unknown";
+        }
+    }
+
+    /**
+     * Delete the results other builds left on disk. The directory may be
+     * shared with anything, so only names we write are touched: results,
+     * half-written results, and build directories. A build directory with
+     * anything else in it is left alone.
+     *
+     * @param root The directory every build keeps its results under
+     * @throws IOException If the directory can't be listed
+     */
+    private void deleteOtherBuilds(Path root) throws IOException {
+        List<Path> stale = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root)) {
+            for (Path entry : stream) {
+                String name = entry.getFileName().toString();
+                if (entry.equals(diskDirectory)) {
+                    continue;
+                }
+                //Other builds' directories, and results from before there were any
+                if (Files.isDirectory(entry) && BUILD_NAME.matcher(name).matches()) {
+                    try (DirectoryStream<Path> files = Files.newDirectoryStream(entry)) {
+                        for (Path file : files) {
+                            if (RESULT_NAME.matcher(file.getFileName().toString()).matches()) {
+                                stale.add(file);
+                            }
+                        }
+                    }
+                    stale.add(entry);
+                } else if (RESULT_NAME.matcher(name).matches()) {
+                    stale.add(entry);
+                }
+            }
+        }
+        for (Path entry : stale) {
+            try {
+                Files.delete(entry);
+            } catch (IOException ex) {
+                Logger.getLogger(ResultCache.class.getName()).log(Level.WARNING, "Can't delete " + entry, ex);
+            }
+        }
+    }
+
+    /**
+     * Build a cache from the -Dichabod.* system properties
+     *
+     * @return A cache configured from the command line
+     */
+    public static ResultCache fromSystemProperties() {
+        String directory = System.getProperty("ichabod.resultCacheDir");
+        return new ResultCache(
+                Long.getLong("ichabod.resultCacheBytes", 64L * 1024 * 1024),
+                Policy.valueOf(System.getProperty("ichabod.resultCachePolicy", "lru").toUpperCase()),
+                directory == null ? null : Paths.get(directory),
+                Long.getLong("ichabod.resultDiskBytes", 1024L * 1024 * 1024));
+    }
+
+    /**
+     * Build the key for a result. Arguments are sorted so the order they were
+     * sent in doesn't matter.
+     *
+     * @param command The command
+     * @param image The source image
+     * @param lastModified When the source image was last modified
+     * @param arguments All the request's arguments
+     * @return The key
+     */
+    public static String key(String command, Path image, long lastModified, Map<String, String> arguments) {
+        StringBuilder key = new StringBuilder();
+        key.append(command).append('|').append(image.toAbsolutePath().normalize()).append('|').append(lastModified);
+
+        for (Map.Entry<String, String> argument : new TreeMap<>(arguments).entrySet()) {
+            //These are already part of the key
+            if (argument.getKey().equals("command") || argument.getKey().equals("image")) {
+                continue;
+            }
+            key.append('|').append(argument.getKey()).append('=').append(argument.getValue());
+        }
+        return key.toString();
+    }
+
+    /**
+     * Look up a result
+     *
+     * @param key The key from key()
+     * @return The encoded result, which must not be modified, or null if we don't have it
+     */
+    public byte[] get(String key) {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                entry.uses++;
+                hits.incrementAndGet();
+                return entry.bytes;
+            }
+        }
+
+        if (diskDirectory != null) {
+            Path file = diskDirectory.resolve(fileName(key));
+            try {
+                byte[] bytes = Files.readAllBytes(file);
+                diskHits.incrementAndGet();
+                putInMemory(key, bytes);
+                return bytes;
+            } catch (IOException ex) {
+                //Not on disk either
+            }
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Remember a result
+     *
+     * @param key The key from key()
+     * @param bytes The encoded result. It must not be modified afterwards.
+     */
+    public void put(String key, byte[] bytes) {
+        putInMemory(key, bytes);
+
+        if (diskDirectory != null) {
+            try {
+                //Write somewhere else first so nobody reads half a file
+                Path file = diskDirectory.resolve(fileName(key));
+                Path temp = Files.createTempFile(diskDirectory, "result", ".tmp");
+                Files.write(temp, bytes);
+                long replaced;
+                try {
+                    replaced = Files.size(file); //A result we already had, which the move writes over
+                } catch (NoSuchFileException ex) {
+                    replaced = 0;
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                boolean trim;
+                synchronized (this) {
+                    diskBytes += bytes.length - replaced;
+                    trim = diskBytes > maxDiskBytes && !trimming;
+                    trimming |= trim;
+                }
+                if (trim) {
+                    //Walking the directory is slow, so do it without holding up lookups.
+                    //Trim to 90% so we're not doing this on every write.
+                    long left = trimDisk(maxDiskBytes / 10 * 9);
+                    synchronized (this) {
+                        diskBytes = left;
+                        trimming = false;
+                    }
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(ResultCache.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Add a result to memory, evicting others until we're under budget
+     *
+     * @param key The key
+     * @param bytes The encoded result
+     */
+    private synchronized void putInMemory(String key, byte[] bytes) {
+        if (bytes.length > maxBytes) {
+            return;
+        }
+
+        Entry old = entries.put(key, new Entry(bytes));
+        if (old != null) {
+            currentBytes -= old.bytes.length;
+        }
+        currentBytes += bytes.length;
+
+        while (currentBytes > maxBytes && entries.size() > 1) {
+            String victim = policy == Policy.LFU ? leastFrequentlyUsed(key) : leastRecentlyUsed(key);
+            currentBytes -= entries.remove(victim).bytes.length;
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param keep A key that must not be picked
+     * @return The key used longest ago
+     */
+    private String leastRecentlyUsed(String keep) {
+        for (String key : entries.keySet()) {
+            if (!key.equals(keep)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param keep A key that must not be picked
+     * @return The key used the fewest times. Ties go to the one used longest ago.
+     */
+    private String leastFrequentlyUsed(String keep) {
+        String victim = null;
+        long fewest = Long.MAX_VALUE;
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().uses < fewest && !entry.getKey().equals(keep)) {
+                fewest = entry.getValue().uses;
+                victim = entry.getKey();
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Delete the oldest files on disk until we're under a limit
+     *
+     * @param limit The most bytes to leave on disk
+     * @return The bytes left on disk
+     */
+    private long trimDisk(long limit) {
+        List<Path> files = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(diskDirectory, "*.bin")) {
+            for (Path file : stream) {
+                files.add(file);
+                total += Files.size(file);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ResultCache.class.getName()).log(Level.WARNING, null, ex);
+            return total;
+        }
+        if (total <= limit) {
+            return total;
+        }
+
+        files.sort((a, b) -> Long.compare(a.toFile().lastModified(), b.toFile().lastModified()));
+        Iterator<Path> iterator = files.iterator();
+        while (total > limit && iterator.hasNext()) {
+            Path file = iterator.next();
+            try {
+                long size = Files.size(file);
+                Files.delete(file);
+                total -= size;
+            } catch (IOException ex) {
+                //Someone else got to it
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Turn a key into a safe file name
+     *
+     * @param key The key
+     * @return A hex digest of the key
+     */
+    private static String fileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest) {
+                name.append(String.format("%02x", b));
+            }
+            return name.append(".bin").toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); //Every JVM has SHA-256
+        }
+    }
+
+    /**
+     * @return The counters as a JSON object
+     */
+    public synchronized String statsJson() {
+        return "{\"hits\":" + hits.get() + ",\"diskHits\":" + diskHits.get() + ",\"misses\":" + misses.get()
+                + ",\"evictions\":" + evictions.get() + ",\"bytes\":" + currentBytes + ",\"maxBytes\":" + maxBytes
+                + ",\"diskBytes\":" + diskBytes + ",\"policy\":\"" + policy + "\"}";
+    }
+
+    /**
+     * One result in memory
+     */
+    private static class Entry {
+
+        /** The encoded result */
+        private final byte[] bytes;
+
+        /** How many times it has been used, for LFU */
+        private long uses = 1;
+
+        Entry(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package ichabod;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a kernel over an image in bands of whole rows, in parallel when the
+ * image is big enough to be worth it. Each band is a run of rows small enough
+ * to stay in cache, and the bands are handed to a pool with one thread per core.
+ *
+ * Every request shares the one pool, so a burst of big images queues up
+ * behind the cores instead of each request starting its own threads.
+ */
+public class RowBands {
+
+    /** Work on the rows from start (inclusive) to end (exclusive) */
+    public interface Band {
+        void run(int start, int end);
+    }
+
+    /** Does the bands, or null if we always run on the caller's thread */
+    private final ForkJoinPool pool;
+
+    /** Images with fewer pixels than this run on the caller's thread */
+    private final int minPixels;
+
+    /** About how many pixels go in each band */
+    private final int bandPixels;
+
+    /**
+     * Create a scheduler
+     *
+     * @param threads How many threads do bands, or 1 to never go parallel
+     * @param minPixels Images with fewer pixels than this aren't split
+     * @param bandPixels About how many pixels go in each band
+     */
+    public RowBands(int threads, int minPixels, int bandPixels) {
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        this.minPixels = minPixels;
+        this.bandPixels = Math.max(1, bandPixels);
+    }
+
+    /**
+     * Build a scheduler from the -Dichabod.* system properties
+     *
+     * @return A scheduler configured from the command line
+     */
+    public static RowBands fromSystemProperties() {
+        return new RowBands(
+                Integer.getInteger("ichabod.kernelThreads", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("ichabod.parallelMinPixels", 256 * 1024),
+                Integer.getInteger("ichabod.bandPixels", 64 * 1024));
+    }
+
+    /**
+     * Run a kernel over every row of an image and wait for it to finish
+     *
+     * @param width The width of a row in pixels
+     * @param height How many rows there are
+     * @param band The kernel, which must only write to the rows it is given
+     */
+    public void forEachRow(int width, int height, Band band) {
+        int rowsPerBand = Math.max(1, bandPixels / Math.max(1, width));
+
+        //Thumbnails aren't worth the hand-off, and if the pool is already
+        //backed up with other requests' bands we'd only be adding to the queue
+        if (pool == null || (long) width * height < minPixels || height <= rowsPerBand
+                || pool.getQueuedSubmissionCount() > 0) {
+            band.run(0, height);
+            return;
+        }
+
+        pool.invoke(new Split(band, 0, height, rowsPerBand));
+    }
+
+    /**
+     * Work out how many threads an image deserves, for kernels that can't be
+     * cut into independent bands and share the work out themselves
+     *
+     * @param width The width of the image
+     * @param height The height of the image
+     * @return How many threads to use, 1 meaning just the caller's
+     */
+    public int workersFor(int width, int height) {
+        if (pool == null || (long) width * height < minPixels || pool.getQueuedSubmissionCount() > 0) {
+            return 1;
+        }
+        return Math.min(pool.getParallelism(), height);
+    }
+
+    /**
+     * Run copies of a worker on the pool and the caller's thread, and wait for
+     * them all to finish. There is no promise a copy starts before another one
+     * finishes, so the workers must take their work from a shared counter
+     * rather than expecting a fixed share.
+     *
+     * @param workers How many copies to run, from workersFor()
+     * @param worker The worker
+     */
+    public void runWorkers(int workers, Runnable worker) {
+        List<ForkJoinTask<?>> others = new ArrayList<>();
+        for (int i = 1; i < workers && pool != null; i++) {
+            others.add(pool.submit(worker));
+        }
+        worker.run();
+        for (ForkJoinTask<?> other : others) {
+            other.join();
+        }
+    }
+
+    /**
+     * Splits a run of rows in half until the pieces are one band long
+     */
+    private static class Split extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Band band;
+
+        private final int start;
+
+        private final int end;
+
+        private final int rowsPerBand;
+
+        Split(Band band, int start, int end, int rowsPerBand) {
+            this.band = band;
+            this.start = start;
+            this.end = end;
+            this.rowsPerBand = rowsPerBand;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= rowsPerBand) {
+                band.run(start, end);
+                return;
+            }
+            //Split on a band boundary so every band but the last is full
+            int middle = start + (end - start) / rowsPerBand / 2 * rowsPerBand;
+            if (middle == start) {
+                middle += rowsPerBand;
+            }
+            invokeAll(new Split(band, start, middle, rowsPerBand), new Split(band, middle, end, rowsPerBand));
+        }
+    }
+}
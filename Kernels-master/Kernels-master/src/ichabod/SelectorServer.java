@@ -0,0 +1,420 @@
+package ichabod;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking front end for the server. One thread watches every
+ * connection with a Selector and reads request headers into pooled buffers.
+ * Only once a whole request has arrived is it handed to the worker pool, so
+ * idle and slow clients don't tie up a thread while they wait.
+ */
+public class SelectorServer implements Runnable {
+
+    /** The largest request head we accept. It has to fit in one pooled buffer. */
+    private static final int BUFFER_SIZE = Integer.getInteger("ichabod.headerBuffer", 8192);
+
+    /** The selector that tells us which connections are ready */
+    private final Selector selector;
+
+    /** The channel we accept connections on */
+    private final ServerSocketChannel serverChannel;
+
+    /** Where complete requests are processed */
+    private final WorkerPool workerPool;
+
+    /** How often we look for idle connections */
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    /** Buffers for reading request headers */
+    private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, 1024);
+
+    /** Work that other threads need done on the selector thread */
+    private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Create a server listening on a port. Call run() to start serving.
+     *
+     * @param port The port to listen on
+     * @param workerPool Where complete requests are processed
+     * @throws IOException If we can't open the port
+     */
+    public SelectorServer(int port, WorkerPool workerPool) throws IOException {
+        this.workerPool = workerPool;
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Loop forever, handling whatever the selector says is ready
+     */
+    @Override
+    public void run() {
+        long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL_MILLIS;
+        while (true) {
+            try {
+                selector.select(SWEEP_INTERVAL_MILLIS);
+
+                //Every so often close keep-alive connections that have gone quiet
+                long now = System.currentTimeMillis();
+                if (now >= nextSweep) {
+                    closeIdleConnections(now);
+                    nextSweep = now + SWEEP_INTERVAL_MILLIS;
+                }
+
+                //Do anything the workers asked for, e.g., send a finished response
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read();
+                            } else if (key.isWritable()) {
+                                connection.write();
+                            }
+                        } catch (IOException ex) {
+                            //The client went away, which is normal
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(SelectorServer.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Close every connection that has been waiting for its next request longer
+     * than the keep-alive timeout
+     *
+     * @param now The current time in milliseconds
+     */
+    private void closeIdleConnections(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                Connection connection = (Connection) key.attachment();
+                if (connection.isIdle() && now - connection.lastActive > StarterSocket.KEEP_ALIVE_TIMEOUT_MILLIS) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Run something on the selector thread. Connections are only ever touched
+     * from that thread, so this is how workers hand back their results.
+     *
+     * @param task The work to do
+     */
+    private void post(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Accept every connection that is waiting
+     *
+     * @throws IOException If accepting fails
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    /**
+     * Find the end of the request head, i.e., the blank line
+     *
+     * @param buffer The bytes read so far, from 0 to position
+     * @return The index just past the blank line, or -1 if we don't have it yet
+     */
+    private static int findHeadEnd(ByteBuffer buffer) {
+        int limit = buffer.position();
+        for (int i = 0; i < limit; i++) {
+            if (buffer.get(i) != '\n') {
+                continue;
+            }
+            //Accept both \n\n and \r\n\r\n
+            if (i + 1 < limit && buffer.get(i + 1) == '\n') {
+                return i + 2;
+            }
+            if (i + 2 < limit && buffer.get(i + 1) == '\r' && buffer.get(i + 2) == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Everything we know about one client connection. Only used on the selector thread.
+     */
+    private class Connection {
+
+        /** The channel to the client */
+        private final SocketChannel channel;
+
+        /** Our registration with the selector */
+        private SelectionKey key;
+
+        /** Bytes read but not yet parsed. Null when there are none, so the buffer can go back to the pool. */
+        private ByteBuffer readBuffer;
+
+        /** Responses waiting to be sent, in order */
+        private final ArrayDeque<QueuedResponse> writeQueue = new ArrayDeque<>();
+
+        /** True while a worker is processing a request for this connection */
+        private boolean busy;
+
+        /** The number of requests we've taken from this connection */
+        private int requestCount;
+
+        /** True once the response being written is the last one */
+        private boolean closeAfterWrite;
+
+        /** When we last heard from or wrote to the client */
+        private long lastActive = System.currentTimeMillis();
+
+        /**
+         * Create a connection
+         *
+         * @param channel The channel to the client
+         */
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Read whatever the client has sent and dispatch a request if we have one
+         *
+         * @throws IOException If the read fails
+         */
+        void read() throws IOException {
+            if (readBuffer == null) {
+                readBuffer = bufferPool.acquire();
+            }
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            if (readBuffer.position() == 0) {
+                bufferPool.release(readBuffer); //Nothing arrived after all
+                readBuffer = null;
+                return;
+            }
+            if (busy && !readBuffer.hasRemaining()) {
+                //We only read while busy to notice the client hanging up. With the buffer
+                //full every read comes back empty, so stop until the response is on its way.
+                key.interestOps(0);
+                return;
+            }
+            dispatch();
+        }
+
+        /**
+         * If a whole request head has arrived, hand it to the worker pool
+         */
+        void dispatch() {
+            if (busy || readBuffer == null) {
+                return;
+            }
+
+            int end = findHeadEnd(readBuffer);
+            if (end < 0) {
+                if (!readBuffer.hasRemaining()) {
+                    close(); //The head doesn't fit in a buffer, so it isn't a request we want
+                }
+                return;
+            }
+
+            //Copy the head out and keep anything after it for next time
+            byte[] head = new byte[end];
+            readBuffer.flip();
+            readBuffer.get(head);
+            readBuffer.compact();
+            if (readBuffer.position() == 0) {
+                bufferPool.release(readBuffer);
+                readBuffer = null;
+            }
+
+            HttpRequest request = HttpRequest.parse(new String(head, StandardCharsets.ISO_8859_1).trim());
+            if (request == null) {
+                close();
+                return;
+            }
+
+            //Stop reading until the response is on its way. Pipelined requests
+            //wait in the buffer so responses go out in the order they were asked for.
+            busy = true;
+            key.interestOps(0);
+            requestCount++;
+            boolean mayKeepAlive = requestCount < StarterSocket.MAX_REQUESTS;
+
+            boolean accepted = workerPool.execute(() -> {
+                QueuedResponse response = new QueuedResponse();
+                response.setWakeup(() -> post(() -> stream(response)));
+                try {
+                    boolean keepAlive = new StarterSocket(response, workerPool).respond(request, mayKeepAlive);
+                    post(() -> send(response, keepAlive));
+                } catch (RuntimeException | Error ex) {
+                    //Without this the connection would wait forever for a response that isn't coming
+                    Logger.getLogger(SelectorServer.class.getName()).log(Level.SEVERE, "Failed to answer " + request.getTarget(), ex);
+                    post(() -> fail(response));
+                }
+            });
+
+            if (!accepted) {
+                QueuedResponse response = new QueuedResponse();
+                new StarterSocket(response, workerPool).respondBusy();
+                send(response, false);
+            }
+        }
+
+        /**
+         * Queue a response and start writing it
+         *
+         * @param response The response to send
+         * @param keepAlive False if the connection should close once it's sent
+         */
+        void send(QueuedResponse response, boolean keepAlive) {
+            busy = false;
+            if (!key.isValid()) {
+                response.close(); //Closed while the worker was busy
+                return;
+            }
+            closeAfterWrite = !keepAlive;
+            if (response.markStarted()) {
+                writeQueue.add(response);
+            }
+            //A streamed response may already be gone, in which case write() just finishes up
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Give up on a response the worker couldn't finish. If none of it has
+         * gone out the client gets a 500, otherwise all we can do is hang up.
+         *
+         * @param response What the worker had made before it failed
+         */
+        void fail(QueuedResponse response) {
+            busy = false;
+            if (!key.isValid() || !response.markStarted()) {
+                //The client is gone, or already has part of the response
+                close();
+                response.close();
+                return;
+            }
+            response.close();
+            QueuedResponse error = new QueuedResponse();
+            new StarterSocket(error, workerPool).respondFailed();
+            send(error, false);
+        }
+
+        /**
+         * Start or carry on writing a response the worker is still adding to
+         *
+         * @param response The streamed response
+         */
+        void stream(QueuedResponse response) {
+            if (!key.isValid()) {
+                response.close(); //Lets the worker know it can stop
+                return;
+            }
+            if (response.markStarted()) {
+                writeQueue.add(response);
+            }
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * @return True if we're waiting on the client rather than the client waiting on us
+         */
+        boolean isIdle() {
+            return !busy && writeQueue.isEmpty();
+        }
+
+        /**
+         * Write as much of the queued responses as the client will take
+         *
+         * @throws IOException If the write fails
+         */
+        void write() throws IOException {
+            while (!writeQueue.isEmpty()) {
+                QueuedResponse response = writeQueue.peek();
+                if (!response.writeTo(channel)) {
+                    if (response.isWaiting()) {
+                        //Sent all there is, and the worker wakes us when there's more. Meanwhile
+                        //reading is how we notice the client hanging up, so the worker can stop early.
+                        key.interestOps(readBuffer == null || readBuffer.hasRemaining() ? SelectionKey.OP_READ : 0);
+                    }
+                    return; //Otherwise the socket is full, wait until it's writable again
+                }
+                writeQueue.poll();
+            }
+            lastActive = System.currentTimeMillis();
+
+            if (closeAfterWrite) {
+                close();
+                return;
+            }
+
+            //Wait for the next request, and answer any that were already pipelined
+            key.interestOps(SelectionKey.OP_READ);
+            dispatch();
+        }
+
+        /**
+         * Close the connection and give back its buffer
+         */
+        void close() {
+            if (readBuffer != null) {
+                bufferPool.release(readBuffer);
+                readBuffer = null;
+            }
+            for (QueuedResponse response : writeQueue) {
+                response.close();
+            }
+            writeQueue.clear();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(SelectorServer.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+    }
+}
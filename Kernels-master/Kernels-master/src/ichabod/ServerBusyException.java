@@ -0,0 +1,16 @@
+package ichabod;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request waited too long for its turn on the CPU. The client
+ * should be told to try again later.
+ */
+public class ServerBusyException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ServerBusyException() {
+        super("Timed out waiting for a CPU permit");
+    }
+}
@@ -0,0 +1,95 @@
+package ichabod;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes sure only one thread does a given piece of work at a time. If a second
+ * thread asks for the same key while the first is still working, it waits and
+ * gets the first thread's answer instead of doing the work again.
+ *
+ * Nothing is remembered once the work finishes; that's what the caches are for.
+ *
+ * @param <K> The key that identifies the work
+ * @param <V> What the work produces
+ */
+public class SingleFlight<K, V> {
+
+    /** Work that can fail with an IOException */
+    public interface Work<V> {
+        V call() throws IOException;
+    }
+
+    /** The work that is currently running, by key */
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /** How many callers got someone else's answer */
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Do the work for a key, or wait for whoever is already doing it
+     *
+     * @param key What identifies the work
+     * @param work The work to do if nobody else is
+     * @return The result, either ours or the other thread's
+     * @throws IOException If the work failed, for whoever did it
+     */
+    public V run(K key, Work<V> work) throws IOException {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> theirs = inFlight.putIfAbsent(key, mine);
+
+        if (theirs != null) {
+            coalesced.incrementAndGet();
+            return await(theirs);
+        }
+
+        try {
+            V result = work.call();
+            mine.complete(result);
+            return result;
+        } catch (IOException | RuntimeException | Error ex) {
+            mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * Wait for another thread's work to finish
+     *
+     * @param future The other thread's result
+     * @return The result
+     * @throws IOException If the other thread's work failed
+     */
+    private V await(CompletableFuture<V> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for another request", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return How many callers got someone else's answer
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+}
@@ -1,18 +1,25 @@
 package ichabod;
 
-import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,64 +30,133 @@ public class StarterSocket implements Runnable {
     
     /** The stream we send information to, i.e., what we send to the browser */
     PrintWriter out;
+
+    /** The raw stream under out, used for sending bytes such as images */
+    OutputStream rawOut;
+
+    /** The response we render into when run by the selector front end, null otherwise */
+    private QueuedResponse queuedResponse;
     
-    /** The scanner we read from, i.e., what we read from the browser. */
-    Scanner in;
+    /** How long an idle keep-alive connection stays open */
+    static final int KEEP_ALIVE_TIMEOUT_MILLIS = Integer.getInteger("ichabod.keepAliveTimeout", 5000);
+
+    /** The most requests we answer on one connection before closing it */
+    static final int MAX_REQUESTS = Integer.getInteger("ichabod.maxRequests", 100);
+
+    /** The longest request head we read before giving up on the connection */
+    private static final int MAX_HEAD_LENGTH = 8192;
+
+    /** The most image and command pairs one batch request may ask for */
+    static final int MAX_BATCH_CELLS = Integer.getInteger("ichabod.maxBatchCells", 256);
+
+    /** Ends a line, a multipart part or a chunk */
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    /** True if the connection stays open after the current response */
+    private boolean keepAlive;
+
+    /** The request we're answering, so we can look at its headers */
+    private HttpRequest request;
+
+    /** The static files we serve, shared by every connection */
+    private static final StaticFileCache staticFiles = StaticFileCache.fromSystemProperties();
 
     /** A reference to our processor class, which handles the actual image processing. */
     Processor processor;
 
+    /** The pool we run in, which also limits how many requests process images at once */
+    private WorkerPool workerPool;
+
     /**
      * Create an instance of this object with a reference to the socket we need
      *
      * @param inSocket The socket to process
+     * @param workerPool The pool this socket runs in
      */
-    public StarterSocket(Socket inSocket) {
+    public StarterSocket(Socket inSocket, WorkerPool workerPool) {
         this.socket = inSocket;
+        this.workerPool = workerPool;
+
+        processor = new Processor(workerPool);
+    }
+
+    /**
+     * Create an instance of this object that writes its responses to a queue
+     * instead of a socket. The selector front end uses this to render a
+     * response and then send it without blocking.
+     *
+     * @param output Where responses are written
+     * @param workerPool The pool this request runs in
+     */
+    StarterSocket(QueuedResponse output, WorkerPool workerPool) {
+        this.workerPool = workerPool;
+        this.queuedResponse = output;
+        this.rawOut = output;
+        this.out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.ISO_8859_1), false);
+
+        processor = new Processor(workerPool);
+    }
 
-        processor = new Processor();
+    /**
+     * Turn the client away because we are overloaded. This is called on the
+     * accept thread instead of run(), so it doesn't read the request at all.
+     */
+    public void reject() {
+        try {
+            rawOut = socket.getOutputStream();
+            out = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.ISO_8859_1), false);
+            handle503();
+            out.close();
+            socket.close();
+        } catch (IOException ex) {
+            Logger.getLogger(StarterSocket.class.getName()).log(Level.SEVERE, null, ex);
+        }
     }
 
     /**
-     * The actual processing of our socket. We grab the GET header line and then
-     * process the provided path
+     * The actual processing of our socket. We read one request head at a time
+     * and answer it, keeping the connection open between requests for as long
+     * as the browser wants and our limits allow. Pipelined requests are simply
+     * read and answered in the order they arrive.
      */
     @Override
     public void run() {
         try {
-            //Create the streams
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new Scanner(socket.getInputStream());
+            //Create the streams. Buffer the output so each response goes out in as few packets as possible.
+            rawOut = new BufferedOutputStream(socket.getOutputStream());
+            out = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.ISO_8859_1), false);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            //Don't let an idle keep-alive connection hold this thread forever
+            socket.setSoTimeout(KEEP_ALIVE_TIMEOUT_MILLIS);
+
+            //Loop until the browser is done talking or we decide to close
+            for (int count = 1; count <= MAX_REQUESTS; count++) {
+                String head = readHead(in);
+                if (head == null) {
+                    break; //The browser closed the connection
+                }
 
-            //The browser will send over lots of information. 
-            //We only care about the GET line so we know what it wants
-            boolean cont = true;
-            
-            //Loop until we find our line or until the browser is done talking
-            while (cont && in.hasNextLine()) {
-                String line = in.nextLine();
-
-                // We only care about lines that start with GET
-                if (line.startsWith("GET ")) {
-                    //Chop up the line into it's parts
-                    String[] splits = line.split(" ");
-                    //The second part should be the URL
-                    String url = splits[1];
-                    System.out.println("GET request for " + url);
-                    //Do something with the request
-                    handleRequest(url);
-                } else if (line.equals("")) {
-                    //This means the header is finished, so we are done processing.
-                    cont = false;
+                HttpRequest request = HttpRequest.parse(head);
+                if (request == null) {
+                    break; //Garbage, so give up on this connection
+                }
+
+                //Do something with the request
+                if (!respond(request, count < MAX_REQUESTS)) {
+                    break;
                 }
             }
 
+        } catch (SocketTimeoutException ex) {
+            //The browser stopped sending requests, so we close the connection
         } catch (IOException ex) {
             ex.printStackTrace();
         } finally {
             //No matter what, close the stream.
-            out.close();
-            in.close();
+            if (out != null) {
+                out.close();
+            }
         }
         try {
             //Close the socket
@@ -90,6 +166,97 @@ public class StarterSocket implements Runnable {
         }
     }
 
+    /**
+     * Read the head of the next request, i.e., everything up to the blank line
+     *
+     * @param in The stream from the browser
+     * @return The request line and headers, or null if the browser closed the connection first
+     * @throws IOException If reading fails
+     */
+    private String readHead(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        StringBuilder line = new StringBuilder();
+
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\r') {
+                continue;
+            }
+            if (c != '\n') {
+                line.append((char) c);
+                if (head.length() + line.length() > MAX_HEAD_LENGTH) {
+                    return null; //Nobody needs a head this big
+                }
+                continue;
+            }
+            if (line.length() == 0) {
+                //A blank line ends the head. Skip any stray blank lines before a request.
+                if (head.length() > 0) {
+                    return head.toString();
+                }
+                continue;
+            }
+            head.append(line).append("\r\n");
+            line.setLength(0);
+        }
+        return null;
+    }
+
+    /**
+     * Respond to a request that has already been read and parsed. Only GET is
+     * supported; anything else gets a 405.
+     *
+     * @param request The request to respond to
+     * @param mayKeepAlive False if this must be the last request on the connection
+     * @return True if the connection should stay open for another request
+     */
+    boolean respond(HttpRequest request, boolean mayKeepAlive) {
+        this.request = request;
+
+        //HTTP/1.1 keeps connections open unless asked not to, HTTP/1.0 only if asked to
+        String connection = request.getHeader("Connection");
+        if (request.getVersion().equals("HTTP/1.1")) {
+            keepAlive = mayKeepAlive && !"close".equalsIgnoreCase(connection);
+        } else {
+            keepAlive = mayKeepAlive && "keep-alive".equalsIgnoreCase(connection);
+        }
+        if (request.hasBody()) {
+            keepAlive = false; //Its body would be read as the next request
+        }
+
+        if (request.getMethod().equals("GET")) {
+            System.out.println("GET request for " + request.getTarget());
+            handleRequest(request.getTarget());
+        } else {
+            handle405();
+        }
+        try {
+            out.flush();
+            rawOut.flush();
+        } catch (IOException ex) {
+            keepAlive = false;
+        }
+        return keepAlive;
+    }
+
+    /**
+     * Respond with 503 because we were too busy to take the request. The
+     * connection is closed afterwards.
+     */
+    void respondBusy() {
+        keepAlive = false;
+        handle503();
+    }
+
+    /**
+     * Respond with 500 because something went wrong while making the real
+     * response. The connection is closed afterwards.
+     */
+    void respondFailed() {
+        keepAlive = false;
+        handle500();
+    }
+
     /**
      * Do something with the path we got from the GET request
      *
@@ -106,8 +273,9 @@ public class StarterSocket implements Runnable {
         }
 
         //Check to make sure the file exists
-        if (isFile(url)) {
-            handle200(Paths.get(url));
+        StaticFileCache.Entry file = lookupFile(url);
+        if (file != null) {
+            handleStatic(file);
 
         } else {
             //If it's not a file we have, check to see if it's a command we understand
@@ -118,36 +286,147 @@ public class StarterSocket implements Runnable {
         }
     }
 
+    /**
+     * Write the status line and headers of a response. The Content-Length has
+     * to be exact, since with keep-alive it's how the browser knows where the
+     * next response starts.
+     *
+     * @param status The status, e.g., 200 OK
+     * @param contentLength The number of bytes in the body, or -1 if there is no body
+     * @param headers Any extra header lines, e.g., Content-Type: text/html
+     */
+    private void writeHead(String status, long contentLength, String... headers) {
+        out.print("HTTP/1.1 " + status + "\r\n");
+        for (String header : headers) {
+            out.print(header + "\r\n");
+        }
+        if (contentLength >= 0) {
+            out.print("Content-Length: " + contentLength + "\r\n");
+        }
+        if (keepAlive) {
+            out.print("Connection: keep-alive\r\n");
+            out.print("Keep-Alive: timeout=" + KEEP_ALIVE_TIMEOUT_MILLIS / 1000 + ", max=" + MAX_REQUESTS + "\r\n");
+        } else {
+            out.print("Connection: close\r\n");
+        }
+        out.print("\r\n");
+        out.flush();
+    }
+
     /**
      * Respond with 404
      */
     private void handle404() {
-        String response = "Bad news, couldn't find that page."; //This could be anything, or even blank.
+        byte[] response = "Bad news, couldn't find that page.".getBytes(StandardCharsets.UTF_8); //This could be anything, or even blank.
+
+        writeHead("404 Not Found", response.length, "Content-Type: text/html");
+        writeBody(response);
+    }
+
+    /**
+     * Respond with 405 because we only answer GET. A HEAD gets the same head
+     * but no body, since its client won't read one.
+     */
+    private void handle405() {
+        byte[] response = "Ichabod only answers GET.".getBytes(StandardCharsets.UTF_8);
+
+        writeHead("405 Method Not Allowed", response.length, "Allow: GET", "Content-Type: text/html");
+        if (!request.getMethod().equals("HEAD")) {
+            writeBody(response);
+        }
+    }
+
+    /**
+     * Respond with 500
+     */
+    private void handle500() {
+        byte[] response = "Ichabod ran into a problem making that.".getBytes(StandardCharsets.UTF_8);
+
+        writeHead("500 Internal Server Error", response.length, "Content-Type: text/html");
+        writeBody(response);
+    }
+
+    /**
+     * Respond with 503 so the client knows to try again later
+     */
+    private void handle503() {
+        byte[] response = "Ichabod is busy, please try again.".getBytes(StandardCharsets.UTF_8);
+
+        writeHead("503 Service Unavailable", response.length, "Retry-After: " + workerPool.getRetryAfterSeconds(), "Content-Type: text/html");
+        writeBody(response);
+    }
+
+    /**
+     * Respond with a static file, or with 304 if the browser's copy is still
+     * good. Small files come from memory, big ones straight from disk.
+     *
+     * @param file What we know about the file
+     */
+    private void handleStatic(StaticFileCache.Entry file) {
+        String etag = "ETag: " + file.getETag();
+        String lastModified = "Last-Modified: " + file.getLastModifiedHeader();
 
-        out.println("HTTP/1.0 404 Not Found");
-        out.println("Content-Type: text/html");
-        out.println("Content-Length: " + response.length());
+        if (file.isNotModified(request.getHeader("If-None-Match"), request.getHeader("If-Modified-Since"))) {
+            writeHead("304 Not Modified", -1, etag, lastModified);
+            return;
+        }
 
-        out.println();
-        out.println(response);
+        byte[] bytes = file.getBytes();
+        if (bytes != null) {
+            writeHead("200 OK", bytes.length, etag, lastModified);
+            writeBody(bytes);
+        } else {
+            handle200(file.getPath(), etag, lastModified);
+        }
     }
 
     /**
      * Respond with a 200 OK and send a file
      *
      * @param path The path to the file we want to send
+     * @param headers Any extra header lines
      */
-    private void handle200(Path path) {
+    private void handle200(Path path, String... headers) {
 
         try {
-            out.print("HTTP/1.0 200 OK\r\n");
-            byte[] bytes = Files.readAllBytes(path);
-            out.print("Content-Length: " + bytes.length + "\r\n");
-            out.print("\r\n");
-            out.flush();
-            socket.getOutputStream().write(bytes, 0, bytes.length);
+            //The length comes from the file's metadata, so we never read the file into memory
+            FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+            long size = file.size();
+            writeHead("200 OK", size, headers);
+            sendFile(file, size);
         } catch (IOException ex) {
             Logger.getLogger(StarterSocket.class.getName()).log(Level.SEVERE, null, ex);
+            keepAlive = false;
+        }
+    }
+
+    /**
+     * Send a file after the head. It goes straight from the file to the socket
+     * with transferTo, which the OS can do with sendfile and no copying
+     * through our heap. The file is closed once it's sent.
+     *
+     * @param file The open file
+     * @param size The number of bytes to send
+     * @throws IOException If sending fails
+     */
+    private void sendFile(FileChannel file, long size) throws IOException {
+        if (queuedResponse != null) {
+            //The selector will send it once the client is ready
+            queuedResponse.addFile(file, 0, size);
+            return;
+        }
+
+        try {
+            rawOut.flush();
+
+            //Sockets from a channel can take the file directly. Anything else gets a channel around its stream.
+            WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(rawOut);
+            long position = 0;
+            while (position < size) {
+                position += file.transferTo(position, size - position, target);
+            }
+        } finally {
+            file.close();
         }
     }
 
@@ -157,29 +436,41 @@ public class StarterSocket implements Runnable {
      */
     private void handle200(String string) {
 
-        out.print("HTTP/1.0 200 OK\r\n");
-
-        out.print("Content-Length: " + string.length() + "\r\n");
-        out.print("\r\n");
-        out.flush();
-        out.println(string);
+        handle200(string.getBytes(StandardCharsets.UTF_8));
 
     }
 
-    private void handle200(byte[] bytes) {
+    /**
+     * Respond with 200 OK and send bytes
+     * @param bytes The body
+     * @param headers Any extra header lines
+     */
+    private void handle200(byte[] bytes, String... headers) {
 
+        writeHead("200 OK", bytes.length, headers);
+        writeBody(bytes);
+
+    }
+
+    /**
+     * Send the body of a response after its head
+     *
+     * @param bytes The body
+     */
+    private void writeBody(byte[] bytes) {
+        if (queuedResponse != null) {
+            queuedResponse.addBytes(bytes); //No need to copy it
+            return;
+        }
         try {
-            out.print("HTTP/1.0 200 OK\r\n");
-            
-            out.print("Content-Length: " + bytes.length+ "\r\n");
-            out.print("\r\n");
-            out.flush();
-            socket.getOutputStream().write(bytes, 0, bytes.length);
+            rawOut.write(bytes, 0, bytes.length);
+            rawOut.flush();
         } catch (IOException ex) {
-            Logger.getLogger(StarterSocket.class.getName()).log(Level.SEVERE, null, ex);
+            //The browser went away, so there's no point keeping the connection
+            keepAlive = false;
         }
-
     }
+
     /**
      * Determine if the string is the path to a file
      *
@@ -188,12 +479,22 @@ public class StarterSocket implements Runnable {
      * is a directory. Also false if it is similar to a command so that files don't mask commands.
      */
     private boolean isFile(String path) {
+        return lookupFile(path) != null;
+    }
 
-        if (path.startsWith("process") || path.startsWith("getFileList") || path.startsWith("getCommandList")) {
-            return false; //That's a command, so we ignore it. This prevents a file that starts with process from crashing everything.
+    /**
+     * Find a static file we can serve
+     *
+     * @param path The name of the file
+     * @return What we know about the file, or null if it doesn't exist, is a
+     * directory or is similar to a command
+     */
+    private StaticFileCache.Entry lookupFile(String path) {
+
+        if (path.startsWith("process") || path.startsWith("getFileList") || path.startsWith("getCommandList") || path.startsWith("getCacheStats")) {
+            return null; //That's a command, so we ignore it. This prevents a file that starts with process from crashing everything.
         }
-        File f = new File(path);
-        return f.exists() && !f.isDirectory();
+        return staticFiles.get(path);
     }
 
     /**
@@ -207,56 +508,53 @@ public class StarterSocket implements Runnable {
         //Return the list of images we can serve
         if (command.startsWith("getFileList")) {
 
-            List<String> fileNames = new ArrayList<>();
-            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(Paths.get("."))) {
-                for (Path path : directoryStream) {
-                    if (isImagePath(path)) {
-                        //Ignore temp files
-                        if (!path.toString().contains("0.")) {
-                            fileNames.add(path.toString().substring(1));
-                        }
-                    }
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
+            HashMap<String, String> keyValuePairs = parseArguments(command);
+            if (keyValuePairs == null) {
+                return false;
             }
 
-            //Put the list into one string separated by |
-            String list = fileNames.stream().reduce("", (a, b) -> a + "|" + b);
-            handle200(list);
+            //The index keeps both responses rendered, so there's nothing to build here
+            if ("json".equals(keyValuePairs.get("format"))) {
+                handle200(ImageIndex.shared().getJsonBody(), "Content-Type: application/json");
+            } else {
+                handle200(ImageIndex.shared().getListBody());
+            }
 
             return true; //We dealt with it, so we're happy.
         } else if(command.startsWith("getCommandList")){
-            //Get a list of commands the user can issue by querying the processor
-            String list = Arrays.stream(processor.validCommands()).reduce("", (a,b)->a + "|" + b);
-            handle200(list);
+            HashMap<String, String> keyValuePairs = parseArguments(command);
+            if (keyValuePairs == null) {
+                return false;
+            }
+
+            //Get a list of commands the user can issue by querying the processor, with their arguments and costs if asked.
+            //The plain list is what the page shows as pictures, so commands that answer with data are only in the JSON.
+            if ("json".equals(keyValuePairs.get("format"))) {
+                handle200(processor.commandsJson().getBytes(StandardCharsets.UTF_8), "Content-Type: application/json");
+            } else {
+                String list = Arrays.stream(processor.imageCommands()).reduce("", (a,b)->a + "|" + b);
+                handle200(list);
+            }
+            return true;
         }         
+        else if (command.startsWith("getCacheStats")) {
+            //Report the processor's cache counters
+            handle200(processor.statsJson().getBytes(StandardCharsets.UTF_8), "Content-Type: application/json");
+            return true;
+        }
+        else if (command.startsWith("processBatch")) {
+            return processBatch(command);
+        }
         else if (command.startsWith("process") || command.startsWith("static")) {
             //Actually run a command on an image
             
-            //Split on ?
-            String[] arguments = command.split("\\?");
-            if (arguments.length != 2) {
+            HashMap<String, String> keyValuePairs = parseArguments(command);
+            if (keyValuePairs == null || keyValuePairs.isEmpty()) {
                 return false;
             }
 
-            String allArguments = arguments[1];
-
-            //Split on &
-            String[] pairs = allArguments.split("&");
-
-            HashMap<String, String> keyValuePairs = new HashMap<String, String>();
-
-            for (String pair : pairs) {
-                String[] keyValue = pair.split("=");
-                if (keyValue.length != 2) {
-                    return false;
-                }
-                keyValuePairs.put(keyValue[0], keyValue[1]);
-            }
-
-            //Make sure we have a command
-            if (!keyValuePairs.containsKey("command")) {
+            //Make sure we have a command. static can do without one, to send the image itself at another size or format.
+            if (!keyValuePairs.containsKey("command") && !command.startsWith("static")) {
                 return false;
             }
 
@@ -266,7 +564,7 @@ public class StarterSocket implements Runnable {
             }
 
             
-            String commandName = keyValuePairs.get("command");
+            String commandName = keyValuePairs.getOrDefault("command", "");
             String imageName = keyValuePairs.get("image");
 
             //Make sure the image exists
@@ -274,8 +572,21 @@ public class StarterSocket implements Runnable {
                 return false;
             }
             
-            //Process the command
-            byte[] result = processor.Process(commandName, imageName, keyValuePairs);
+            //JSON answers don't come in formats, so there's nothing to negotiate and they don't vary with Accept
+            boolean data = processor.answersWithData(commandName);
+            boolean negotiated = !data && !keyValuePairs.containsKey("format");
+            if (!data && !chooseFormat(keyValuePairs)) {
+                return false;
+            }
+
+            //Process the command. The processor waits its turn for the CPU, and if that takes too long we're overloaded.
+            byte[] result;
+            try {
+                result = processor.Process(commandName, imageName, keyValuePairs);
+            } catch (ServerBusyException ex) {
+                handle503();
+                return true;
+            }
 
             //Make sure the command succeeded
             if (result == null) {
@@ -284,7 +595,13 @@ public class StarterSocket implements Runnable {
             
             
             
-            handle200(result);
+            String contentType = "Content-Type: " + processor.contentType(commandName, keyValuePairs);
+            if (negotiated) {
+                //Caches between us and the browser need to know the answer depends on Accept
+                handle200(result, contentType, "Vary: Accept");
+            } else {
+                handle200(result, contentType);
+            }
             
             return true;
             
@@ -294,21 +611,197 @@ public class StarterSocket implements Runnable {
         return false; //We didn't catch the command, so return false so we know to send a 404
     }
 
-    //List of image types we support. Any other file extensions will not be served by our system as images.
-    private String[] imageExtensions = new String[]{".jpeg", ".jpg", ".gif", ".bmp", ".png"};
+    /**
+     * Settle the format a result is encoded in. Without a format= we go by the
+     * Accept header. Either way the format is an argument, so it's part of the
+     * cache key.
+     *
+     * @param keyValuePairs The request's arguments, which get the format put in them
+     * @return False if the format isn't one we can make
+     */
+    private boolean chooseFormat(HashMap<String, String> keyValuePairs) {
+        ImageEncoder.Format format;
+        try {
+            format = keyValuePairs.containsKey("format") ? ImageEncoder.Format.fromName(keyValuePairs.get("format"))
+                    : ImageEncoder.negotiate(request.getHeader("Accept"));
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+        keyValuePairs.put("format", format.name().toLowerCase());
+        return true;
+    }
 
     /**
-     * Determines if the path belongs to a file with an image file extension
-     * @param path The path to check
-     * @return True if it has an image fie extension, false otherwise
+     * Run every command in a batch on every image, e.g.,
+     * processBatch?images=Italy.jpg,Bridge.jpeg&commands=grayscale,edges, and
+     * stream the results back as multipart/mixed, one part per cell in the
+     * order they finish. Any other arguments apply to every cell. With
+     * HTTP/1.1 each part is sent as a chunk; with HTTP/1.0 the connection
+     * closing ends the response. If the client goes away, the cells that
+     * haven't started are dropped.
+     *
+     * @param command The command
+     * @return True if we sent a response, false for a 404
      */
-    private boolean isImagePath(Path path) {
-        for (String extension : imageExtensions) {
-            if (path.toString().endsWith(extension)) {
-                return true;
+    private boolean processBatch(String command) {
+        HashMap<String, String> keyValuePairs = parseArguments(command);
+        if (keyValuePairs == null || !keyValuePairs.containsKey("images") || !keyValuePairs.containsKey("commands")) {
+            return false;
+        }
+        List<String> images = splitList(keyValuePairs.remove("images"));
+        List<String> commands = splitList(keyValuePairs.remove("commands"));
+        if (images.isEmpty() || commands.isEmpty() || images.size() * commands.size() > MAX_BATCH_CELLS) {
+            return false;
+        }
+        for (String image : images) {
+            if (!isFile(image)) {
+                return false;
+            }
+        }
+        //Only the images depend on Accept; Process leaves the format out of data commands' results
+        boolean negotiated = !keyValuePairs.containsKey("format") && !commands.stream().allMatch(processor::answersWithData);
+        if (!chooseFormat(keyValuePairs)) {
+            return false;
+        }
+
+        boolean chunked = request.getVersion().equals("HTTP/1.1");
+        if (!chunked) {
+            keepAlive = false; //Nothing but the connection closing can tell the client we're done
+        }
+        String boundary = "ichabod-batch-" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        List<String> headers = new ArrayList<>();
+        headers.add("Content-Type: multipart/mixed; boundary=" + boundary);
+        if (chunked) {
+            headers.add("Transfer-Encoding: chunked");
+        }
+        if (negotiated) {
+            headers.add("Vary: Accept");
+        }
+
+        //The selector front end sends the head and each part as soon as we have them
+        if (queuedResponse != null) {
+            queuedResponse.startStreaming();
+        }
+        writeHead("200 OK", -1, headers.toArray(new String[0]));
+
+        boolean complete = processor.ProcessBatch(images, commands, keyValuePairs, cell -> {
+            byte[] result = cell.getResult();
+            StringBuilder part = new StringBuilder("--").append(boundary).append("\r\n");
+            if (result != null) {
+                part.append("Content-Type: ").append(processor.contentType(cell.getCommand(), keyValuePairs)).append("\r\n");
+            } else {
+                result = new byte[0];
+                part.append("Status: ").append(cell.isBusy() ? "503 Service Unavailable" : "404 Not Found").append("\r\n");
+            }
+            part.append("Content-Location: process?command=").append(cell.getCommand()).append("&image=").append(cell.getImage()).append("\r\n");
+            part.append("Content-Length: ").append(result.length).append("\r\n\r\n");
+            return writeStreamed(chunked, part.toString().getBytes(StandardCharsets.ISO_8859_1), result, CRLF);
+        });
+
+        if (complete) {
+            byte[] end = ("--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            if (writeStreamed(chunked, end) && chunked) {
+                writeStreamed(false, "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            }
+        } else {
+            keepAlive = false; //The client has gone, or has only part of the response
+        }
+        if (queuedResponse != null) {
+            queuedResponse.finishStreaming();
+        }
+        return true;
+    }
+
+    /**
+     * Send part of a streamed response right away
+     *
+     * @param chunked True to send the pieces as one HTTP chunk
+     * @param pieces The bytes to send, in order
+     * @return False if the client has gone away
+     */
+    private boolean writeStreamed(boolean chunked, byte[]... pieces) {
+        List<byte[]> all = new ArrayList<>();
+        if (chunked) {
+            long length = 0;
+            for (byte[] piece : pieces) {
+                length += piece.length;
+            }
+            all.add((Long.toHexString(length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        }
+        all.addAll(Arrays.asList(pieces));
+        if (chunked) {
+            all.add(CRLF);
+        }
+
+        if (queuedResponse != null) {
+            if (queuedResponse.isClosed()) {
+                return false;
+            }
+            for (byte[] piece : all) {
+                queuedResponse.addBytes(piece); //No need to copy it
+            }
+            queuedResponse.flush();
+            return !queuedResponse.isClosed();
+        }
+        try {
+            for (byte[] piece : all) {
+                rawOut.write(piece, 0, piece.length);
+            }
+            rawOut.flush();
+            return true;
+        } catch (IOException ex) {
+            keepAlive = false;
+            return false;
+        }
+    }
+
+    /**
+     * Split a comma separated argument
+     *
+     * @param value The argument, with its commas as they are or escaped as %2C
+     * @return The items that aren't empty
+     */
+    private static List<String> splitList(String value) {
+        List<String> items = new ArrayList<>();
+        for (String item : value.split(",|%2[cC]")) {
+            if (!item.isEmpty()) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Pull the key=value arguments out of a command
+     *
+     * @param command The command, e.g., process?command=edges&image=Italy.jpg
+     * @return The arguments, empty if there are none, or null if they don't make sense
+     */
+    private HashMap<String, String> parseArguments(String command) {
+        HashMap<String, String> keyValuePairs = new HashMap<String, String>();
+
+        //Split on ?
+        String[] arguments = command.split("\\?");
+        if (arguments.length == 1) {
+            return keyValuePairs;
+        }
+        if (arguments.length != 2) {
+            return null;
+        }
+
+        String allArguments = arguments[1];
+
+        //Split on &
+        String[] pairs = allArguments.split("&");
+
+        for (String pair : pairs) {
+            String[] keyValue = pair.split("=");
+            if (keyValue.length != 2) {
+                return null;
             }
+            keyValuePairs.put(keyValue[0], keyValue[1]);
         }
-        return false;
+        return keyValuePairs;
     }
 
 }
@@ -0,0 +1,274 @@
+package ichabod;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the static files we serve: whether they exist, their size, when
+ * they were last modified and, for small files, their bytes. The bytes are
+ * kept under a total budget and the least recently used files are dropped
+ * first. An entry is thrown away as soon as its file's modified time or size
+ * changes.
+ */
+public class StaticFileCache {
+
+    /** The most bytes of file contents we keep in memory */
+    private final long maxBytes;
+
+    /** Files bigger than this are never kept in memory. They're sent from disk instead. */
+    private final long maxEntryBytes;
+
+    /** How long we trust an entry before checking the file on disk again */
+    private final long recheckMillis;
+
+    /** The entries, oldest access first */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    /** The number of content bytes currently held by entries */
+    private long currentBytes;
+
+    /** The format HTTP uses for dates, e.g., Tue, 15 Nov 1994 08:12:31 GMT */
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+    /**
+     * Create a cache
+     *
+     * @param maxBytes The most bytes of file contents to keep in memory
+     * @param maxEntryBytes The largest file to keep in memory
+     * @param recheckMillis How long to trust an entry before looking at the file again
+     */
+    public StaticFileCache(long maxBytes, long maxEntryBytes, long recheckMillis) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.recheckMillis = recheckMillis;
+    }
+
+    /**
+     * Build a cache from the -Dichabod.* system properties
+     *
+     * @return A cache configured from the command line
+     */
+    public static StaticFileCache fromSystemProperties() {
+        return new StaticFileCache(
+                Long.getLong("ichabod.staticCacheBytes", 64L * 1024 * 1024),
+                Long.getLong("ichabod.staticCacheEntryBytes", 1024 * 1024),
+                Long.getLong("ichabod.staticRecheckMillis", 1000));
+    }
+
+    /**
+     * Look up a file, loading it if we haven't seen it or it changed
+     *
+     * @param name The path of the file, relative to where we serve from
+     * @return The entry, or null if there is no regular file with that name
+     */
+    public Entry get(String name) {
+        long now = System.currentTimeMillis();
+
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(name);
+        }
+        if (entry != null && now - entry.checkedAt < recheckMillis) {
+            return entry;
+        }
+
+        //Either we don't know the file or it's time to make sure it hasn't changed. One stat does it.
+        Path path = Paths.get(name);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException ex) {
+            remove(name); //Most likely it doesn't exist (any more)
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            remove(name);
+            return null;
+        }
+
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if (entry != null && entry.lastModified == lastModified && entry.size == attributes.size()) {
+            entry.checkedAt = now; //Still good
+            return entry;
+        }
+
+        //New or changed, so (re)load it
+        byte[] bytes = null;
+        if (attributes.size() <= maxEntryBytes) {
+            try {
+                bytes = Files.readAllBytes(path);
+            } catch (IOException ex) {
+                Logger.getLogger(StaticFileCache.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+        //If the file changed while we read it, the size tells us. Don't cache a torn read.
+        if (bytes != null && bytes.length != attributes.size()) {
+            bytes = null;
+        }
+
+        Entry loaded = new Entry(path, attributes.size(), lastModified, bytes, now);
+        put(name, loaded);
+        return loaded;
+    }
+
+    /**
+     * Add an entry, evicting old ones until we're back under budget
+     *
+     * @param name The file name
+     * @param entry The entry
+     */
+    private synchronized void put(String name, Entry entry) {
+        Entry old = entries.put(name, entry);
+        if (old != null) {
+            currentBytes -= old.cachedBytes();
+        }
+        currentBytes += entry.cachedBytes();
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            if (eldest == entry) {
+                continue; //Don't evict what we just loaded
+            }
+            currentBytes -= eldest.cachedBytes();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Forget a file
+     *
+     * @param name The file name
+     */
+    private synchronized void remove(String name) {
+        Entry old = entries.remove(name);
+        if (old != null) {
+            currentBytes -= old.cachedBytes();
+        }
+    }
+
+    /**
+     * What we know about one file
+     */
+    public static class Entry {
+
+        /** Where the file is */
+        private final Path path;
+
+        /** The size of the file in bytes */
+        private final long size;
+
+        /** When the file was last modified, in milliseconds */
+        private final long lastModified;
+
+        /** The contents, or null if the file is too big to keep */
+        private final byte[] bytes;
+
+        /** The validator we hand out. It changes whenever the size or modified time does. */
+        private final String etag;
+
+        /** When we last made sure the file hadn't changed */
+        private volatile long checkedAt;
+
+        Entry(Path path, long size, long lastModified, byte[] bytes, long checkedAt) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.bytes = bytes;
+            this.checkedAt = checkedAt;
+            this.etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+        }
+
+        /**
+         * @return Where the file is
+         */
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * @return The size of the file in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return When the file was last modified, in milliseconds
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return The contents of the file, or null if it has to be read from disk
+         */
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return The ETag header value, including its quotes
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * @return The Last-Modified header value
+         */
+        public String getLastModifiedHeader() {
+            return HTTP_DATE.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(lastModified), ZoneOffset.UTC));
+        }
+
+        /**
+         * Decide if the browser's copy is still good, based on its validators
+         *
+         * @param ifNoneMatch The If-None-Match header, or null
+         * @param ifModifiedSince The If-Modified-Since header, or null
+         * @return True if we can answer 304 Not Modified
+         */
+        public boolean isNotModified(String ifNoneMatch, String ifModifiedSince) {
+            //If-None-Match wins when both are sent
+            if (ifNoneMatch != null) {
+                for (String tag : ifNoneMatch.split(",")) {
+                    tag = tag.trim();
+                    if (tag.equals("*") || tag.equals(etag)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (ifModifiedSince != null) {
+                try {
+                    long since = ZonedDateTime.parse(ifModifiedSince, HTTP_DATE).toInstant().toEpochMilli();
+                    //HTTP dates only have whole seconds
+                    return lastModified / 1000 <= since / 1000;
+                } catch (DateTimeParseException ex) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return How many bytes of contents this entry holds
+         */
+        private long cachedBytes() {
+            return bytes == null ? 0 : bytes.length;
+        }
+    }
+}
@@ -6,11 +6,13 @@
 package ichabod;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 
 /**
- * Starts a server that simply listens for clients and then spawns a threaded listener to handle requests
+ * Starts a server that listens for clients and hands their requests to a
+ * worker pool. If the pool is full the client gets a 503.
  * 
  */
 public class ThreadedServer {
@@ -28,23 +30,44 @@ public class ThreadedServer {
         //The socket we're attached to. 
         int socketNum = 5001;
         
-        //Create a socket listener
-        ServerSocket serverSocket = new ServerSocket(socketNum);
+        //Index the images now so the first getFileList doesn't have to
+        ImageIndex.shared();
+
+        //Keep a pyramid of smaller copies next to every image, for thumbnails to start from
+        PyramidStore.shared().watch(ImageIndex.shared());
+        
+        //Decide how connections are run (see WorkerPool for the -Dichabod.* options)
+        WorkerPool workerPool = WorkerPool.fromSystemProperties();
+        
+        //By default one selector thread watches every connection and only complete requests go to the pool
+        if (System.getProperty("ichabod.frontend", "nio").equals("nio")) {
+            SelectorServer selectorServer = new SelectorServer(socketNum, workerPool);
+            System.out.println("Ichabod is listening on " + socketNum + " with a selector in " + workerPool.getMode() + " mode. Hope your day is even better.");
+            selectorServer.run();
+            return;
+        }
+        
+        //Otherwise fall back to blocking sockets, one connection per worker
+        //Create a socket listener. Sockets accepted from a channel let us send files with transferTo.
+        ServerSocketChannel serverSocket = ServerSocketChannel.open();
+        serverSocket.bind(new InetSocketAddress(socketNum));
         
-        System.out.println("Ichabod is listening on " + socketNum + ". Hope your day is even better.");
+        System.out.println("Ichabod is listening on " + socketNum + " in " + workerPool.getMode() + " mode. Hope your day is even better.");
         
         
         //Loop forever
         while(true)
         {
             //Wait for a connection
-            Socket socket = serverSocket.accept();
+            Socket socket = serverSocket.accept().socket();
             
             //Instatiatiate a new listener
-            StarterSocket runnableSocket = new StarterSocket(socket);
+            StarterSocket runnableSocket = new StarterSocket(socket, workerPool);
             
-            //Start the listener in a new thread.
-            new Thread(runnableSocket).start();
+            //Hand the listener to the pool. If it's full, tell the client to come back later.
+            if (!workerPool.execute(runnableSocket)) {
+                runnableSocket.reject();
+            }
         }
         
     }
@@ -0,0 +1,211 @@
+package ichabod;
+
+import java.awt.image.BufferedImage;
+import java.util.Map;
+
+/**
+ * The size a request wants its result at, from its width, height and fit
+ * arguments. Commands run on the image after it is shrunk, so a thumbnail
+ * costs about as much as its own pixels rather than the original's.
+ *
+ * The source is decoded at the coarsest whole-number subsampling that still
+ * leaves at least as many pixels as we need, then averaged down to the exact
+ * size. Images are never enlarged.
+ */
+class Thumbnail {
+
+    /** The largest width or height a request can ask for */
+    static final int MAX_SIZE = 16384;
+
+    /** How the image is fitted to the box the width and height make */
+    enum Fit {
+        /** Shrink to fit inside the box, keeping the aspect ratio */
+        CONTAIN,
+        /** Shrink to cover the box, keeping the aspect ratio, and crop what sticks out from the middle */
+        COVER,
+        /** Shrink to the box exactly, stretching if the aspect ratios differ */
+        FILL
+    }
+
+    /** The box's width, or 0 if only the height matters */
+    private final int width;
+
+    /** The box's height, or 0 if only the width matters */
+    private final int height;
+
+    /** How the image is fitted to the box */
+    private final Fit fit;
+
+    /**
+     * @param width The box's width, or 0 if only the height matters
+     * @param height The box's height, or 0 if only the width matters
+     * @param fit How the image is fitted to the box
+     */
+    Thumbnail(int width, int height, Fit fit) {
+        this.width = width;
+        this.height = height;
+        this.fit = fit;
+    }
+
+    /**
+     * Read the size a request wants
+     *
+     * @param arguments The request's arguments
+     * @return The thumbnail, or null if the request wants the full size
+     * @throws IllegalArgumentException If width, height or fit is no good
+     */
+    static Thumbnail fromArguments(Map<String, String> arguments) {
+        int width = size(arguments, "width");
+        int height = size(arguments, "height");
+        String fit = arguments.get("fit");
+        if (width == 0 && height == 0) {
+            if (fit != null) {
+                throw new IllegalArgumentException("fit needs a width or height");
+            }
+            return null;
+        }
+        return new Thumbnail(width, height, fit == null ? Fit.CONTAIN : Fit.valueOf(fit.toUpperCase()));
+    }
+
+    /**
+     * @param arguments The request's arguments
+     * @param name width or height
+     * @return The size, or 0 if it isn't given
+     */
+    private static int size(Map<String, String> arguments, String name) {
+        String value = arguments.get(name);
+        if (value == null) {
+            return 0;
+        }
+        int size = Integer.parseInt(value);
+        if (size < 1 || size > MAX_SIZE) {
+            throw new IllegalArgumentException(name + " must be between 1 and " + MAX_SIZE);
+        }
+        return size;
+    }
+
+    /**
+     * Work out the size the whole source shrinks to, before any cropping
+     *
+     * @param sourceWidth The original's width
+     * @param sourceHeight The original's height
+     * @return The width and height
+     */
+    int[] scaledSize(int sourceWidth, int sourceHeight) {
+        double across = width == 0 ? Double.NaN : (double) width / sourceWidth;
+        double down = height == 0 ? Double.NaN : (double) height / sourceHeight;
+
+        if (fit == Fit.FILL && width != 0 && height != 0) {
+            return new int[]{Math.min(width, sourceWidth), Math.min(height, sourceHeight)};
+        }
+
+        //With one side given, both fits just match that side
+        double scale;
+        if (Double.isNaN(across)) {
+            scale = down;
+        } else if (Double.isNaN(down)) {
+            scale = across;
+        } else {
+            scale = fit == Fit.COVER ? Math.max(across, down) : Math.min(across, down);
+        }
+        scale = Math.min(scale, 1);
+        return new int[]{Math.max(1, (int) Math.round(sourceWidth * scale)), Math.max(1, (int) Math.round(sourceHeight * scale))};
+    }
+
+    /**
+     * @param sourceWidth The original's width
+     * @param sourceHeight The original's height
+     * @return The width and height of what we make, after any cropping
+     */
+    int[] outputSize(int sourceWidth, int sourceHeight) {
+        int[] scaled = scaledSize(sourceWidth, sourceHeight);
+        if (fit == Fit.COVER) {
+            return new int[]{width == 0 ? scaled[0] : Math.min(width, scaled[0]), height == 0 ? scaled[1] : Math.min(height, scaled[1])};
+        }
+        return scaled;
+    }
+
+    /**
+     * Work out how coarsely the source can be decoded and still have enough
+     * pixels to average down from
+     *
+     * @param sourceWidth The original's width
+     * @param sourceHeight The original's height
+     * @return The subsampling to decode with, 1 for every pixel
+     */
+    int subsampling(int sourceWidth, int sourceHeight) {
+        int[] scaled = scaledSize(sourceWidth, sourceHeight);
+        return Math.max(1, Math.min(sourceWidth / scaled[0], sourceHeight / scaled[1]));
+    }
+
+    /**
+     * Shrink an image and crop it to what was asked for
+     *
+     * @param source The original, or a subsampled decode of it, which is only read
+     * @param sourceWidth The original's width, before any subsampling
+     * @param sourceHeight The original's height, before any subsampling
+     * @param bands Splits the pass across cores
+     * @return A new image
+     */
+    BufferedImage apply(BufferedImage source, int sourceWidth, int sourceHeight, RowBands bands) {
+        int[] scaled = scaledSize(sourceWidth, sourceHeight);
+        int[] output = outputSize(sourceWidth, sourceHeight);
+        int inWidth = source.getWidth();
+        int inHeight = source.getHeight();
+
+        //Which source columns and rows each output pixel averages, after
+        //taking off half of what's cropped from each side
+        int[] left = new int[output[0] + 1];
+        int[] top = new int[output[1] + 1];
+        int cropX = (scaled[0] - output[0]) / 2;
+        int cropY = (scaled[1] - output[1]) / 2;
+        for (int x = 0; x <= output[0]; x++) {
+            left[x] = (int) ((long) (x + cropX) * inWidth / scaled[0]);
+        }
+        for (int y = 0; y <= output[1]; y++) {
+            top[y] = (int) ((long) (y + cropY) * inHeight / scaled[1]);
+        }
+
+        BufferedImage result = Pixels.create(output[0], output[1]);
+        int[] in = Pixels.data(source);
+        int[] out = Pixels.data(result);
+        int outWidth = output[0];
+
+        bands.forEachRow(outWidth, output[1], (start, end) -> {
+            for (int y = start; y < end; y++) {
+                int y0 = top[y];
+                int y1 = Math.max(y0 + 1, top[y + 1]);
+                for (int x = 0; x < outWidth; x++) {
+                    int x0 = left[x];
+                    int x1 = Math.max(x0 + 1, left[x + 1]);
+
+                    //A plain box average, which is only a few pixels across after subsampling
+                    long a = 0;
+                    long r = 0;
+                    long g = 0;
+                    long b = 0;
+                    for (int sy = y0; sy < y1; sy++) {
+                        for (int i = sy * inWidth + x0, stop = sy * inWidth + x1; i < stop; i++) {
+                            int pixel = in[i];
+                            a += pixel >>> 24;
+                            r += Pixels.red(pixel);
+                            g += Pixels.green(pixel);
+                            b += Pixels.blue(pixel);
+                        }
+                    }
+                    long count = (long) (y1 - y0) * (x1 - x0);
+                    long half = count / 2;
+                    out[y * outWidth + x] = (int) ((a + half) / count << 24 | (r + half) / count << 16 | (g + half) / count << 8 | (b + half) / count);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return A name for this size that can go in a cache key
+     */
+    String key() {
+        return width + "x" + height + "/" + fit.name().toLowerCase();
+    }
+}
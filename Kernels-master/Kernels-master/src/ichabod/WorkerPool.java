@@ -0,0 +1,206 @@
+package ichabod;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides where connections run and how many of them may be doing image
+ * processing at the same time.
+ *
+ * In POOL mode connections are handed to a fixed number of worker threads with
+ * a bounded queue in front of them. In THREADS mode every connection gets its
+ * own thread, like the server used to do. Either way only a limited number of
+ * requests may be inside the Processor at once, so a burst of requests doesn't
+ * turn into hundreds of threads fighting over the cores.
+ */
+public class WorkerPool {
+
+    /** The ways we can run connections */
+    public enum Mode {
+        /** A bounded executor with a bounded queue */
+        POOL,
+        /** A thread per connection, with the CPU semaphore as the only limit */
+        THREADS
+    }
+
+    /** How we run connections */
+    private final Mode mode;
+
+    /** The executor used in POOL mode, null otherwise */
+    private final ThreadPoolExecutor executor;
+
+    /** Permits for doing CPU heavy work. One permit per request in the Processor */
+    private final Semaphore cpuPermits;
+
+    /** Permits heavy requests need as well as a CPU permit, so they can't take every CPU permit at once */
+    private final Semaphore heavyPermits;
+
+    /** Requests estimated to take at least this long on one core are heavy */
+    private final long heavyMillis;
+
+    /** How long a request waits for a CPU permit before we give up on it */
+    private final long cpuWaitMillis;
+
+    /** How many seconds we tell clients to wait before trying again */
+    private final int retryAfterSeconds;
+
+    /** Used to give our threads readable names */
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * Create a pool
+     *
+     * @param mode How connections are run
+     * @param workers The number of worker threads (POOL mode only)
+     * @param queueSize The number of connections that may wait for a worker (POOL mode only)
+     * @param cpuPermits The number of requests that may be processing images at once
+     * @param heavyPermits The number of heavy requests that may be processing images at once
+     * @param heavyMillis Requests estimated to take at least this long on one core are heavy
+     * @param cpuWaitMillis How long a request may wait for a CPU permit
+     * @param retryAfterSeconds The Retry-After value we send when we're overloaded
+     */
+    public WorkerPool(Mode mode, int workers, int queueSize, int cpuPermits, int heavyPermits, long heavyMillis, long cpuWaitMillis,
+            int retryAfterSeconds) {
+        this.mode = mode;
+        this.cpuPermits = new Semaphore(cpuPermits, true);
+        this.heavyPermits = new Semaphore(heavyPermits, true);
+        this.heavyMillis = heavyMillis;
+        this.cpuWaitMillis = cpuWaitMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+
+        if (mode == Mode.POOL) {
+            //AbortPolicy throws when the queue is full, which is how we know to shed load
+            executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize), threadFactory("ichabod-worker-"),
+                    new ThreadPoolExecutor.AbortPolicy());
+        } else {
+            executor = null;
+        }
+    }
+
+    /**
+     * Build a pool from the -Dichabod.* system properties
+     *
+     * @return A pool configured from the command line
+     */
+    public static WorkerPool fromSystemProperties() {
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        Mode mode = Mode.valueOf(System.getProperty("ichabod.mode", "pool").toUpperCase());
+        int workers = Integer.getInteger("ichabod.workers", cores * 2);
+        int queueSize = Integer.getInteger("ichabod.queue", 64);
+        int cpuPermits = Integer.getInteger("ichabod.cpuPermits", cores);
+        int heavyPermits = Integer.getInteger("ichabod.heavyPermits", Math.max(1, cpuPermits / 2));
+        long heavyMillis = Long.getLong("ichabod.heavyMillis", 50);
+        long cpuWaitMillis = Long.getLong("ichabod.cpuWaitMillis", 2000);
+        int retryAfter = Integer.getInteger("ichabod.retryAfter", 1);
+
+        return new WorkerPool(mode, workers, queueSize, cpuPermits, heavyPermits, heavyMillis, cpuWaitMillis, retryAfter);
+    }
+
+    /**
+     * Run a task, either on the pool or on its own thread
+     *
+     * @param task The task to run
+     * @return True if the task was accepted, false if we are overloaded
+     */
+    public boolean execute(Runnable task) {
+        if (mode == Mode.THREADS) {
+            Thread thread = new Thread(task, "ichabod-connection-" + threadCount.incrementAndGet());
+            thread.start();
+            return true;
+        }
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            return false; //The queue is full
+        }
+    }
+
+    /**
+     * Wait for permission to do CPU heavy work. Every successful call must be
+     * matched by a call to releaseCpu() with the same estimate.
+     *
+     * Heavy requests also need a heavy permit, and there are fewer of those,
+     * so a burst of big jobs leaves CPU permits free for small ones.
+     *
+     * @param estimatedMillis About how long the request will take on one core
+     * @return True if we got our permits, false if we waited too long
+     */
+    public boolean acquireCpu(double estimatedMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(cpuWaitMillis);
+        boolean heavy = false;
+        try {
+            if (isHeavy(estimatedMillis)) {
+                heavy = heavyPermits.tryAcquire(cpuWaitMillis, TimeUnit.MILLISECONDS);
+                if (!heavy) {
+                    return false;
+                }
+            }
+            if (cpuPermits.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        //We didn't get the CPU permit, so don't hold the heavy one either
+        if (heavy) {
+            heavyPermits.release();
+        }
+        return false;
+    }
+
+    /**
+     * Give back the permits we got from acquireCpu()
+     *
+     * @param estimatedMillis The estimate we passed to acquireCpu()
+     */
+    public void releaseCpu(double estimatedMillis) {
+        cpuPermits.release();
+        if (isHeavy(estimatedMillis)) {
+            heavyPermits.release();
+        }
+    }
+
+    /**
+     * @param estimatedMillis About how long a request will take on one core
+     * @return True if it counts as heavy
+     */
+    private boolean isHeavy(double estimatedMillis) {
+        return estimatedMillis >= heavyMillis;
+    }
+
+    /**
+     * @return How many seconds an overloaded client should wait before retrying
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * @return How connections are being run
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Create a thread factory that names threads so they are easy to spot in a profiler
+     *
+     * @param prefix The start of each thread's name
+     * @return The factory
+     */
+    private ThreadFactory threadFactory(String prefix) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,69 @@
+package ichabod;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Checks that our PNG writer makes files any decoder reads back exactly
+ */
+public class ImageEncoderTest {
+
+    /**
+     * @param width The width
+     * @param height The height
+     * @param alpha False for an opaque image
+     * @param seed Picks the pixels
+     * @return An image of random pixels, in our layout
+     */
+    private static BufferedImage randomImage(int width, int height, boolean alpha, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = Pixels.create(width, height);
+        int[] pixels = Pixels.data(image);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = alpha ? random.nextInt() : Pixels.OPAQUE | random.nextInt(1 << 24);
+        }
+        return image;
+    }
+
+    /**
+     * Encode an image as PNG with every filter and a few levels, and check
+     * ImageIO reads back the same pixels each time
+     *
+     * @param image The image, in our layout
+     * @param name What to call it in a failure
+     */
+    private static void checkRoundTrip(BufferedImage image, String name) throws IOException {
+        for (int level : new int[]{0, 1, 6, 9}) {
+            for (ImageEncoder.Filter filter : ImageEncoder.Filter.values()) {
+                byte[] png = new ImageEncoder(level, filter, 85).encode(image, ImageEncoder.Format.PNG, new HashMap<>());
+                BufferedImage decoded = Pixels.toArgb(ImageIO.read(new ByteArrayInputStream(png)));
+                String what = name + " at level " + level + " with " + filter;
+                assertEquals(what, image.getWidth(), decoded.getWidth());
+                assertEquals(what, image.getHeight(), decoded.getHeight());
+                assertArrayEquals(what, Pixels.data(image), Pixels.data(decoded));
+            }
+        }
+    }
+
+    @Test
+    public void opaqueImagesRoundTrip() throws IOException {
+        checkRoundTrip(randomImage(1, 1, false, 1), "1x1 RGB");
+        checkRoundTrip(randomImage(257, 13, false, 2), "257x13 RGB");
+        checkRoundTrip(Pixels.toArgb(ImageIO.read(new File("Bridge.jpeg"))), "Bridge.jpeg");
+    }
+
+    @Test
+    public void translucentImagesRoundTrip() throws IOException {
+        checkRoundTrip(randomImage(1, 1, true, 3), "1x1 RGBA");
+        checkRoundTrip(randomImage(131, 29, true, 4), "131x29 RGBA");
+        checkRoundTrip(Pixels.toArgb(ImageIO.read(new File("SombraSkull.png"))), "SombraSkull.png");
+    }
+}
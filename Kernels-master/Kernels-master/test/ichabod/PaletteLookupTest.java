@@ -0,0 +1,99 @@
+package ichabod;
+
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Checks the lookup cube against measuring every palette color, which is
+ * what reduceColor did before it had the cube
+ */
+public class PaletteLookupTest {
+
+    /**
+     * Find the nearest palette color the slow way
+     *
+     * @param palette The palette
+     * @param rgb A packed pixel
+     * @return The index of the nearest color by L1 distance, ties going to the first
+     */
+    private static int bruteForce(int[] palette, int rgb) {
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int c = 0; c < palette.length; c++) {
+            int distance = Math.abs(Pixels.red(rgb) - Pixels.red(palette[c])) + Math.abs(Pixels.green(rgb) - Pixels.green(palette[c]))
+                    + Math.abs(Pixels.blue(rgb) - Pixels.blue(palette[c]));
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Compare the cube with brute force over every step-th color
+     *
+     * @param palette The palette
+     * @param step 1 for every color, or a prime to sample evenly
+     */
+    private static void check(int[] palette, int step) {
+        PaletteLookup lookup = new PaletteLookup(palette);
+        for (int rgb = 0; rgb < 1 << 24; rgb += step) {
+            int expected = bruteForce(palette, rgb);
+            int actual = lookup.nearest(rgb);
+            if (actual != expected) {
+                assertEquals("palette of " + palette.length + " at " + Integer.toHexString(rgb), expected, actual);
+            }
+        }
+    }
+
+    /**
+     * @param k How many colors
+     * @param seed Picks them
+     * @return A palette of random colors
+     */
+    private static int[] randomPalette(int k, long seed) {
+        Random random = new Random(seed);
+        int[] palette = new int[k];
+        for (int c = 0; c < k; c++) {
+            palette[c] = Pixels.OPAQUE | random.nextInt(1 << 24);
+        }
+        return palette;
+    }
+
+    @Test
+    public void smallPalettesMatchEveryColor() {
+        for (int k : new int[]{1, 2, 8}) {
+            check(randomPalette(k, k), 1);
+        }
+    }
+
+    @Test
+    public void bigPalettesMatchSampledColors() {
+        check(randomPalette(64, 64), 7);
+        check(randomPalette(256, 256), 61);
+    }
+
+    /**
+     * Repeated colors and colors the same distance apart have to go to the
+     * first of them, like brute force does
+     */
+    @Test
+    public void tiesGoToTheFirst() {
+        int[] duplicates = {0xff808080, 0xff202020, 0xff808080, 0xff202020};
+        check(duplicates, 1);
+
+        //Each pair straddles a cell edge the same distance either side
+        int[] straddling = {0xff070707, 0xff080808, 0xff0f0f0f, 0xff101010, 0xff7f0000, 0xff800000};
+        check(straddling, 1);
+
+        //Every color on the edges of the cells, so nearly every cell is split
+        int[] edges = new int[64];
+        for (int c = 0; c < edges.length; c++) {
+            int v = (c % 32) * 8 + (c < 32 ? 0 : 7);
+            edges[c] = Pixels.opaque(v, 255 - v, v);
+        }
+        check(edges, 7);
+    }
+}
@@ -0,0 +1,129 @@
+package ichabod;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import javax.imageio.ImageIO;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Runs whole requests through the Processor on the images we serve. Tests
+ * run from the project directory, like the server.
+ */
+public class ProcessorTest {
+
+    private final Processor processor = new Processor();
+
+    /**
+     * Process a request and decode what it made
+     *
+     * @param command The command or pipeline
+     * @param image The image to run it on
+     * @param arguments key, value, key, value...
+     * @return The result's pixels in our layout
+     */
+    private BufferedImage process(String command, String image, String... arguments) throws IOException {
+        HashMap<String, String> map = new HashMap<>();
+        for (int i = 0; i < arguments.length; i += 2) {
+            map.put(arguments[i], arguments[i + 1]);
+        }
+        byte[] result = processor.Process(command, image, map);
+        assertNotNull(command + " on " + image, result);
+        return Pixels.toArgb(ImageIO.read(new ByteArrayInputStream(result)));
+    }
+
+    /**
+     * The gallery's thumbnails are smaller than the overlay, which used to
+     * leave them without a shadow at all
+     */
+    @Test
+    public void opaqueshadowDarkensThumbnails() throws IOException {
+        for (String image : new String[]{"Bridge.jpeg", "Camera.jpg"}) {
+            BufferedImage plain = process("", image, "width", "288", "height", "192");
+            BufferedImage shadowed = process("opaqueshadow", image, "width", "288", "height", "192");
+            assertEquals(plain.getWidth(), shadowed.getWidth());
+            assertEquals(plain.getHeight(), shadowed.getHeight());
+            assertFalse(image, Arrays.equals(Pixels.data(plain), Pixels.data(shadowed)));
+        }
+    }
+
+    /**
+     * The shadow on a thumbnail covers about the same share of the picture as
+     * it does at full size
+     */
+    @Test
+    public void opaqueshadowThumbnailMatchesFullSize() throws IOException {
+        for (String fit : new String[]{"contain", "cover", "fill"}) {
+            BufferedImage full = process("opaqueshadow", "Bridge.jpeg", "format", "png");
+            BufferedImage thumbnail = process("opaqueshadow", "Bridge.jpeg", "width", "288", "height", "192", "fit", fit);
+            double fullShare = darkenedShare(process("", "Bridge.jpeg"), full);
+            double thumbnailShare = darkenedShare(process("", "Bridge.jpeg", "width", "288", "height", "192", "fit", fit), thumbnail);
+            assertTrue(fit + ": " + fullShare + " vs " + thumbnailShare, Math.abs(fullShare - thumbnailShare) < 0.02);
+        }
+    }
+
+    /**
+     * Fused runs of per-pixel commands, with flips and rotations moved past
+     * them, have to make exactly what the commands make one at a time
+     */
+    @Test
+    public void fusedPipelinesMatchStagesOneByOne() throws IOException {
+        String[] pipelines = {
+            "grayscale|negateImage",
+            "negateImage|rotate|grayscale",
+            "grayscale|horizontalflip|negateImage|rotate|negateImage",
+            "rotate|negateImage|horizontalflip|grayscale|rotate",
+            "negateImage|grayscale|edges|negateImage|horizontalflip|negateImage"
+        };
+        for (String image : new String[]{"Bridge.jpeg", "mountains.png"}) {
+            for (String pipeline : pipelines) {
+                BufferedImage fused = process(pipeline, image, "format", "png");
+
+                //PNG keeps every pixel, so each stage can start from the last one's file
+                String current = image;
+                for (String stage : pipeline.split("\\|")) {
+                    HashMap<String, String> arguments = new HashMap<>();
+                    arguments.put("format", "png");
+                    byte[] bytes = processor.Process(stage, current, arguments);
+                    assertNotNull(stage, bytes);
+                    Path next = Files.createTempFile("stage", ".png");
+                    next.toFile().deleteOnExit();
+                    Files.write(next, bytes);
+                    current = next.toString();
+                }
+                BufferedImage oneByOne = Pixels.toArgb(ImageIO.read(new File(current)));
+
+                assertEquals(pipeline, oneByOne.getWidth(), fused.getWidth());
+                assertEquals(pipeline, oneByOne.getHeight(), fused.getHeight());
+                assertArrayEquals(image + " " + pipeline, Pixels.data(oneByOne), Pixels.data(fused));
+            }
+        }
+    }
+
+    /**
+     * @param plain An image
+     * @param shadowed The same image with opaqueshadow run on it
+     * @return The share of the area opaqueshadow made darker
+     */
+    private static double darkenedShare(BufferedImage plain, BufferedImage shadowed) {
+        int[] before = Pixels.data(plain);
+        int[] after = Pixels.data(shadowed);
+        int darker = 0;
+        for (int i = 0; i < before.length; i++) {
+            if (Pixels.green(after[i]) < Pixels.green(before[i])) {
+                darker++;
+            }
+        }
+        return (double) darker / before.length;
+    }
+}
@@ -0,0 +1,83 @@
+package ichabod;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the disk tier of the result cache
+ */
+public class ResultCacheTest {
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("results");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Results survive a restart of the same build
+     */
+    @Test
+    public void diskSurvivesRestart() {
+        byte[] bytes = {1, 2, 3};
+        new ResultCache(1024, ResultCache.Policy.LRU, directory, 1024).put("key", bytes);
+        assertArrayEquals(bytes, new ResultCache(1024, ResultCache.Policy.LRU, directory, 1024).get("key"));
+    }
+
+    /**
+     * Writing a result we already have on disk doesn't count its bytes twice
+     */
+    @Test
+    public void rewriteCountsOnce() {
+        ResultCache cache = new ResultCache(1024, ResultCache.Policy.LRU, directory, 1024);
+        cache.put("key", new byte[100]);
+        cache.put("key", new byte[100]);
+        assertTrue(cache.statsJson(), cache.statsJson().contains("\"diskBytes\":100,"));
+    }
+
+    /**
+     * What other builds left behind is deleted, so a build that makes
+     * different bytes never serves the old ones, but nothing else is
+     */
+    @Test
+    public void otherBuildsAreWiped() throws IOException {
+        String result = String.join("", Collections.nCopies(16, "0123")) + ".bin";
+        Path unversioned = Files.write(directory.resolve(result), new byte[]{1});
+        Path halfWritten = Files.write(directory.resolve("result123.tmp"), new byte[]{1});
+        Path oldBuild = Files.createDirectory(directory.resolve("v1-0000000000000000"));
+        Files.write(oldBuild.resolve(result), new byte[]{2});
+        Path unrelated = Files.write(directory.resolve("notes.txt"), new byte[]{3});
+        Path someoneElses = Files.write(directory.resolve("foo.bin"), new byte[]{4});
+        Path someoneElsesTemp = Files.write(directory.resolve("foo.tmp"), new byte[]{5});
+        Path lookalike = Files.createDirectory(directory.resolve("v1-backup"));
+
+        new ResultCache(1024, ResultCache.Policy.LRU, directory, 1024);
+
+        assertFalse(Files.exists(unversioned));
+        assertFalse(Files.exists(halfWritten));
+        assertFalse(Files.exists(oldBuild));
+        assertTrue(Files.exists(unrelated));
+        assertTrue(Files.exists(someoneElses));
+        assertTrue(Files.exists(someoneElsesTemp));
+        assertTrue(Files.exists(lookalike));
+        assertTrue(Files.exists(directory.resolve("v1-" + ResultCache.buildStamp())));
+    }
+}